@@ -0,0 +1,58 @@
+package org.example.model;
+
+import me.ippolitov.fit.snakes.SnakesProto.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//стоимость одного хода мастера: nextTurn на поле с заданным числом змей.
+//использует только публичный api движка, поэтому тот же бенчмарк можно запустить на старых коммитах и сравнить.
+//погибшие змеи сразу заменяются новыми, чтобы число змей на поле оставалось постоянным
+//запуск: ./gradlew jmh
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameEngineBenchmark {
+    @Param({"16x16", "40x30", "100x100"})
+    public String size; //размер поля ширина x высота, 16x16 - почти заполненное поле
+
+    @Param({"10", "50"})
+    public int snakes; //сколько змей держать на поле
+
+    private GameEngine engine;
+    private final Random steer = new Random(7); //повороты игроков, фиксированное зерно для повторяемости
+    private final Direction[] directions = Direction.values();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        String[] dims = size.split("x");
+        GameConfig config = GameConfig.newBuilder()
+                .setWidth(Integer.parseInt(dims[0]))
+                .setHeight(Integer.parseInt(dims[1]))
+                .setFoodStatic(10)
+                .setStateDelayMs(100)
+                .build();
+        engine = new GameEngine(config);
+        for (int id = 0; id < snakes; id++) {
+            engine.getField().addPlayer(new GameField.PlayerInfo("player" + id, id, NodeRole.NORMAL));
+            engine.placeNewSnake(id);
+        }
+    }
+
+    @Benchmark
+    public int nextTurn() {
+        for (int id = 0; id < snakes; id++) {
+            if (!engine.getField().getSnakes().containsKey(id)) {
+                engine.placeNewSnake(id);
+            } else if (steer.nextInt(8) == 0) {
+                engine.setPlayerMove(id, directions[steer.nextInt(directions.length)]);
+            }
+        }
+        engine.nextTurn();
+        return engine.getField().getStateOrder();
+    }
+}
@@ -3,6 +3,7 @@ package org.example.controller;
 import me.ippolitov.fit.snakes.SnakesProto.*;
 import org.example.model.GameEngine;
 import org.example.model.GameField.PlayerInfo;
+import org.example.model.StateHistory;
 import org.example.network.NetworkManager;
 import org.example.ui.IGameUI;
 import org.slf4j.Logger;
@@ -10,12 +11,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class GameController {
     private static final Logger logger = LoggerFactory.getLogger(GameController.class);
+    private static final int KEYFRAME_INTERVAL = 20; //каждое такое состояние рассылается целиком даже игрокам с изменениями
     
     private IGameUI ui;
     private NetworkManager networkManager;
@@ -37,10 +41,11 @@ public class GameController {
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
     private ScheduledFuture<?> gameLoopTask; //игровой цикл
     private ScheduledFuture<?> announcementTask; //отправка обьявлений
-    private ScheduledFuture<?> networkTask; //обработка сети
     
     private MessageHandler messageHandler; //обработчик входящих сообщений
     private int deputyPlayerId = -1; //id заместителя
+    private final Map<Integer, Integer> ackedStateOrders = new ConcurrentHashMap<>(); //последнее состояние, которое есть у игрока целиком, по id
+    private final Map<Integer, PlayerAddress> playerAddresses = new ConcurrentHashMap<>(); //разрешённые адреса игроков по id
     
     private String currentGameName = null; //название текущей игры
     private String gameMasterName = null; //имя мастера игры
@@ -82,6 +87,19 @@ public class GameController {
         }
     }
     
+    //адрес игрока, разбирается из строки один раз и пересоздаётся только если у игрока сменился ip или порт
+    private static class PlayerAddress {
+        final String ipAddress;
+        final int port;
+        final InetSocketAddress address;
+        
+        PlayerAddress(String ipAddress, int port) throws UnknownHostException {
+            this.ipAddress = ipAddress;
+            this.port = port;
+            this.address = new InetSocketAddress(InetAddress.getByName(ipAddress), port);
+        }
+    }
+    
     //создаёт контроллер и инициализирует сетевой менеджер
     public GameController() {
         try {
@@ -100,13 +118,10 @@ public class GameController {
     
     //запускает фоновые задачи для обработки сети и проверки таймаутов
     private void startNetworkTasks() {
-        //задача обработки входящих сообщений каждые 10 мс
-        networkTask = scheduler.scheduleAtFixedRate(
-                this::processNetworkMessages,
-                0,
-                10,
-                TimeUnit.MILLISECONDS
-        );
+        //входящие сообщения обрабатываются в потоке ввода-вывода сразу после получения
+        if (networkManager != null) {
+            networkManager.start(this::onNetworkMessage);
+        }
         
         //задача проверки таймаутов каждые 100 мс
         scheduler.scheduleAtFixedRate(
@@ -125,27 +140,12 @@ public class GameController {
         );
     }
     
-    //обрабатывает входящие unicast и multicast сообщения
-    private void processNetworkMessages() {
-        try {
-            NetworkManager.ReceivedMessage unicastMsg = networkManager.receiveUnicast(5);
-            if (unicastMsg != null) {
-                logger.info("Received unicast: {} from {}:{}", 
-                    getMessageType(unicastMsg.message),
-                    unicastMsg.address.getHostAddress(), unicastMsg.port);
-                messageHandler.handleMessage(unicastMsg);
-            }
-            
-            NetworkManager.ReceivedMessage multicastMsg = networkManager.receiveMulticast(5);
-            if (multicastMsg != null) {
-                logger.info("Received multicast: {} from {}:{}", 
-                    getMessageType(multicastMsg.message),
-                    multicastMsg.address.getHostAddress(), multicastMsg.port);
-                messageHandler.handleMessage(multicastMsg);
-            }
-        } catch (IOException e) {
-            logger.error("Error processing network messages", e);
-        }
+    //обрабатывает входящее unicast или multicast сообщение
+    private void onNetworkMessage(NetworkManager.ReceivedMessage received) {
+        logger.info("Received {} from {}:{}",
+            getMessageType(received.message),
+            received.address.getHostAddress(), received.port);
+        messageHandler.handleMessage(received);
     }
     
     //определяет тип сообщения для логирования
@@ -153,6 +153,7 @@ public class GameController {
         if (msg.hasAnnouncement()) return "Announcement";
         if (msg.hasJoin()) return "Join";
         if (msg.hasState()) return "State";
+        if (msg.hasStateDelta()) return "StateDelta";
         if (msg.hasSteer()) return "Steer";
         if (msg.hasAck()) return "Ack";
         if (msg.hasPing()) return "Ping";
@@ -175,11 +176,7 @@ public class GameController {
         timeoutMs = Math.max(timeoutMs, 3000);
         
         //повторно отправляет неподтверждённые сообщения
-        try {
-            networkManager.retransmitPending(stateDelayMs / 10);
-        } catch (IOException e) {
-            logger.error("Error retransmitting messages", e);
-        }
+        networkManager.retransmitPending(stateDelayMs / 10);
         
         //проверяет таймаут мастера для обычных узлов и заместителей
         if ((myRole == NodeRole.NORMAL || myRole == NodeRole.DEPUTY) && myPlayerId >= 0) {
@@ -257,17 +254,27 @@ public class GameController {
         stopGame();
     }
     
+    //возвращает адрес игрока из кэша, при смене ip или порта разбирает его заново
+    private InetSocketAddress getPlayerAddress(PlayerInfo player) throws UnknownHostException {
+        PlayerAddress cached = playerAddresses.get(player.id);
+        if (cached == null || cached.port != player.port || !cached.ipAddress.equals(player.ipAddress)) {
+            cached = new PlayerAddress(player.ipAddress, player.port);
+            playerAddresses.put(player.id, cached);
+        }
+        return cached.address;
+    }
+    
     //отправляет ping сообщение игроку для проверки соединения
     private void sendPing(PlayerInfo player) {
         try {
-            InetAddress addr = InetAddress.getByName(player.ipAddress);
+            InetSocketAddress addr = getPlayerAddress(player);
             GameMessage pingMsg = GameMessage.newBuilder()
                     .setMsgSeq(networkManager.getNextMsgSeq())
                     .setSenderId(myPlayerId)
                     .setPing(GameMessage.PingMsg.newBuilder().build())
                     .build();
             
-            networkManager.sendUnicast(pingMsg, addr, player.port);
+            networkManager.sendUnicast(pingMsg, addr);
         } catch (Exception e) {
             logger.error("Failed to send ping to player {}", player.id, e);
         }
@@ -348,12 +355,13 @@ public class GameController {
     }
     
     //добавляет нового игрока в игру
-    public void addPlayer(int playerId, String playerName, NodeRole role, String ipAddress, int port) {
+    public void addPlayer(int playerId, String playerName, NodeRole role, String ipAddress, int port, boolean supportsDelta) {
         if (gameEngine == null) return;
         
         PlayerInfo player = new PlayerInfo(playerName, playerId, role);
         player.ipAddress = ipAddress;
         player.port = port;
+        player.supportsDelta = supportsDelta;
         gameEngine.getField().addPlayer(player);
     }
     
@@ -404,10 +412,19 @@ public class GameController {
     
     //отправляет подтверждение получения сообщения
     public void sendAck(long msgSeq, int receiverId, InetAddress address, int port) {
+        sendAck(msgSeq, receiverId, address, port, -1);
+    }
+    
+    //отправляет подтверждение, для состояния - с номером последнего состояния которое есть у этого узла
+    public void sendAck(long msgSeq, int receiverId, InetAddress address, int port, int stateOrder) {
         try {
+            GameMessage.AckMsg.Builder ack = GameMessage.AckMsg.newBuilder();
+            if (stateOrder >= 0) {
+                ack.setStateOrder(stateOrder);
+            }
             GameMessage.Builder ackBuilder = GameMessage.newBuilder()
                     .setMsgSeq(msgSeq)
-                    .setAck(GameMessage.AckMsg.newBuilder().build());
+                    .setAck(ack.build());
             
             if (myPlayerId >= 0) {
                 ackBuilder.setSenderId(myPlayerId);
@@ -422,6 +439,12 @@ public class GameController {
         }
     }
     
+    //запоминает от какого состояния строить изменения для игрока
+    public void handleStateAck(int playerId, int stateOrder) {
+        if (myRole != NodeRole.MASTER) return;
+        ackedStateOrders.merge(playerId, stateOrder, Math::max);
+    }
+    
     //обрабатывает отключение игрока делая его зомби или наблюдателем
     public void handlePlayerLeft(int playerId) {
         if (gameEngine == null) return;
@@ -500,6 +523,7 @@ public class GameController {
         
         this.masterAddress = null;
         this.masterPort = 0;
+        ackedStateOrders.clear();
         
         //запускает задачи мастера
         if (gameEngine != null) {
@@ -717,6 +741,7 @@ public class GameController {
                             .setPlayerName(myPlayerName)
                             .setGameName(currentGameName != null ? currentGameName : "game")
                             .setRequestedRole(NodeRole.NORMAL)
+                            .setSupportsDelta(true)
                             .build())
                     .build();
             
@@ -915,6 +940,7 @@ public class GameController {
                             .setPlayerName(playerName)
                             .setGameName(gameName)
                             .setRequestedRole(requestedRole)
+                            .setSupportsDelta(true)
                             .build())
                     .build();
             
@@ -1143,6 +1169,8 @@ public class GameController {
         deputyPlayerId = -1;
         deputyAddress = null;
         deputyPort = 0;
+        ackedStateOrders.clear();
+        playerAddresses.clear();
         
         if (networkManager != null) {
             networkManager.clearPendingMessages();
@@ -1270,29 +1298,70 @@ public class GameController {
         }
     }
     
-    //рассылает текущее состояние игры всем игрокам
+    //рассылает текущее состояние игры всем игрокам. игрокам с supports_delta уходят изменения от состояния,
+    //которое они подтвердили; остальным, а также всем раз в KEYFRAME_INTERVAL ходов - полное состояние
     private void broadcastGameState() {
         if (gameEngine == null) return;
         
         try {
             me.ippolitov.fit.snakes.SnakesProto.GameState state = gameEngine.buildGameState();
+            StateHistory history = gameEngine.getStateHistory();
+            history.put(state);
             
-            GameMessage stateMsg = GameMessage.newBuilder()
-                    .setMsgSeq(networkManager.getNextMsgSeq())
-                    .setState(GameMessage.StateMsg.newBuilder()
-                            .setState(state)
-                            .build())
-                    .build();
+            boolean keyframe = state.getStateOrder() % KEYFRAME_INTERVAL == 0;
+            GameMessage stateMsg = null;
+            Map<Integer, GameMessage> deltaMsgs = new HashMap<>(); //изменения по номеру базового состояния, общие для игроков с той же базой
+            Map<GameMessage, List<InetSocketAddress>> recipients = new IdentityHashMap<>(); //кому уходит каждое сообщение
             
-            //отправляет состояние каждому игроку
+            //выбирает сообщение для каждого игрока
             for (PlayerInfo player : gameEngine.getField().getPlayers().values()) {
-                if (player.id != myPlayerId && player.ipAddress != null) {
-                    try {
-                        InetAddress addr = InetAddress.getByName(player.ipAddress);
-                        networkManager.sendUnicast(stateMsg, addr, player.port);
-                    } catch (IOException e) {
-                        logger.error("Failed to send state to player {}", player.id, e);
+                if (player.id == myPlayerId || player.ipAddress == null) {
+                    continue;
+                }
+                
+                InetSocketAddress address;
+                try {
+                    address = getPlayerAddress(player);
+                } catch (UnknownHostException e) {
+                    logger.error("Failed to resolve address of player {}", player.id, e);
+                    continue;
+                }
+                
+                GameMessage msg = null;
+                Integer baseOrder = ackedStateOrders.get(player.id);
+                if (!keyframe && player.supportsDelta && baseOrder != null && baseOrder < state.getStateOrder()) {
+                    msg = deltaMsgs.get(baseOrder);
+                    me.ippolitov.fit.snakes.SnakesProto.GameState base = msg == null ? history.get(baseOrder) : null;
+                    if (base != null) {
+                        msg = GameMessage.newBuilder()
+                                .setMsgSeq(networkManager.getNextMsgSeq())
+                                .setStateDelta(history.buildDelta(base, state))
+                                .build();
+                        deltaMsgs.put(baseOrder, msg);
+                    }
+                }
+                
+                //базовое состояние вытеснено из истории или игрок не умеет принимать изменения
+                if (msg == null) {
+                    if (stateMsg == null) {
+                        stateMsg = GameMessage.newBuilder()
+                                .setMsgSeq(networkManager.getNextMsgSeq())
+                                .setState(GameMessage.StateMsg.newBuilder()
+                                        .setState(state)
+                                        .build())
+                                .build();
                     }
+                    msg = stateMsg;
+                }
+                recipients.computeIfAbsent(msg, m -> new ArrayList<>()).add(address);
+            }
+            
+            //каждое сообщение сериализуется один раз и уходит всем своим получателям
+            for (Map.Entry<GameMessage, List<InetSocketAddress>> entry : recipients.entrySet()) {
+                try {
+                    networkManager.sendToAll(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    logger.error("Failed to send state to {} players", entry.getValue().size(), e);
                 }
             }
         } catch (Exception e) {
@@ -1337,13 +1406,7 @@ public class GameController {
             }
             
             //вычисляет занятые клетки для определения возможности присоединения
-            int occupiedCells = 0;
-            for (var snake : gameEngine.getField().getSnakes().values()) {
-                occupiedCells += snake.getAllCells(
-                    gameEngine.getField().getWidth(), 
-                    gameEngine.getField().getHeight()
-                ).size();
-            }
+            int occupiedCells = gameEngine.getField().getOccupiedCellCount();
             
             int totalCells = gameEngine.getField().getWidth() * gameEngine.getField().getHeight();
             boolean canJoin = (totalCells - occupiedCells) > 25;
@@ -1407,13 +1470,7 @@ public class GameController {
                 playersBuilder.addPlayers(playerBuilder.build());
             }
             
-            int occupiedCells = 0;
-            for (var snake : gameEngine.getField().getSnakes().values()) {
-                occupiedCells += snake.getAllCells(
-                    gameEngine.getField().getWidth(), 
-                    gameEngine.getField().getHeight()
-                ).size();
-            }
+            int occupiedCells = gameEngine.getField().getOccupiedCellCount();
             
             int totalCells = gameEngine.getField().getWidth() * gameEngine.getField().getHeight();
             boolean canJoin = (totalCells - occupiedCells) > 25;
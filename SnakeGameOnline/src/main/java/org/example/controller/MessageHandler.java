@@ -33,6 +33,8 @@ public class MessageHandler {
                 handleJoin(msg, received.address, received.port);
             } else if (msg.hasState()) {
                 handleState(msg, received.address, received.port);
+            } else if (msg.hasStateDelta()) {
+                handleStateDelta(msg, received.address, received.port);
             } else if (msg.hasSteer()) {
                 handleSteer(msg, received.address, received.port);
             } else if (msg.hasAck()) {
@@ -47,8 +49,11 @@ public class MessageHandler {
                 handleDiscover(msg, received.address, received.port);
             }
             
-            //отправляет подтверждение для всех кроме ack announcement и discover
-            if (!msg.hasAck() && !msg.hasAnnouncement() && !msg.hasDiscover()) {
+            //отправляет подтверждение для всех кроме ack announcement и discover.
+            //состояние подтверждается номером последнего состояния, которое есть целиком - от него мастер строит изменения
+            if (msg.hasState() || msg.hasStateDelta()) {
+                sendStateAck(msg.getMsgSeq(), received.address, received.port);
+            } else if (!msg.hasAck() && !msg.hasAnnouncement() && !msg.hasDiscover()) {
                 sendAck(msg.getMsgSeq(), received.address, received.port);
             }
         } catch (Exception e) {
@@ -155,7 +160,7 @@ public class MessageHandler {
             return;
         }
 
-        controller.addPlayer(newPlayerId, playerName, requestedRole, address.getHostAddress(), port);
+        controller.addPlayer(newPlayerId, playerName, requestedRole, address.getHostAddress(), port, join.getSupportsDelta());
 
         //если это первый обычный игрок делает его заместителем
         if (requestedRole == NodeRole.NORMAL && controller.getDeputyPlayerId() == -1) {
@@ -169,36 +174,68 @@ public class MessageHandler {
     
     //обрабатывает обновление состояния игры от мастера
     private void handleState(GameMessage msg, InetAddress address, int port) {
-        if (controller.getMyRole() == NodeRole.MASTER) {
+        if (!isStateFromMaster(address, port)) {
+            return;
+        }
+        
+        applyState(msg.getState().getState());
+    }
+    
+    //обрабатывает изменения состояния от мастера: полное состояние восстанавливается от базового из истории
+    private void handleStateDelta(GameMessage msg, InetAddress address, int port) {
+        if (!isStateFromMaster(address, port)) {
+            return;
+        }
+        
+        GameMessage.StateDeltaMsg delta = msg.getStateDelta();
+        me.ippolitov.fit.snakes.SnakesProto.GameState state = controller.getGameEngine().getStateHistory().applyDelta(delta);
+        if (state == null) {
+            //пропущено базовое состояние: подтверждение с текущим state_order укажет мастеру от чего строить изменения
+            logger.debug("No base state {} for delta {}, waiting for full state", 
+                delta.getBaseStateOrder(), delta.getStateOrder());
             return;
         }
         
+        applyState(state);
+    }
+    
+    //проверяет что состояние пришло от текущего мастера и его есть куда применить
+    private boolean isStateFromMaster(InetAddress address, int port) {
+        if (controller.getMyRole() == NodeRole.MASTER) {
+            return false;
+        }
+        
         //проверяет что состояние пришло от правильного мастера
         InetAddress expectedMaster = controller.getMasterAddress();
         int expectedPort = controller.getMasterPort();
         if (expectedMaster == null || expectedPort <= 0) {
             logger.debug("Ignoring state: no master address set");
-            return;
+            return false;
         }
         if (!address.getHostAddress().equals(expectedMaster.getHostAddress()) || port != expectedPort) {
             logger.debug("Ignoring state from wrong master {}:{}, expected {}:{}", 
                 address.getHostAddress(), port, expectedMaster.getHostAddress(), expectedPort);
-            return;
+            return false;
         }
         
-        GameMessage.StateMsg stateMsg = msg.getState();
-        me.ippolitov.fit.snakes.SnakesProto.GameState state = stateMsg.getState();
-        
         if (controller.getGameEngine() == null) {
             logger.warn("Received state but no game engine");
-            return;
+            return false;
         }
-        
+        return true;
+    }
+    
+    private void applyState(me.ippolitov.fit.snakes.SnakesProto.GameState state) {
         NodeRole myActualRole = controller.getMyRole();
         int myPlayerId = controller.getMyPlayerId();
         
-        //применяет полученное состояние к локальному движку
-        controller.getGameEngine().applyGameState(state);
+        //применяет полученное состояние к локальному движку и запоминает его как базу для следующих изменений.
+        //у отклонённого в подтверждении остаётся прежний номер, и мастер построит изменения от него
+        if (!controller.getGameEngine().applyGameState(state)) {
+            logger.warn("Rejected invalid game state order {}", state.getStateOrder());
+            return;
+        }
+        controller.getGameEngine().getStateHistory().put(state);
         
         //восстанавливает свою роль если она была изменена
         if (myPlayerId >= 0) {
@@ -235,7 +272,12 @@ public class MessageHandler {
     
     private void handleAck(GameMessage msg, InetAddress address, int port) {
         long msgSeq = msg.getMsgSeq();
-        controller.getNetworkManager().handleAck(msgSeq);
+        controller.getNetworkManager().handleAck(msgSeq, address, port);
+        
+        //игрок сообщил какое состояние у него есть целиком
+        if (msg.getAck().hasStateOrder() && msg.hasSenderId()) {
+            controller.handleStateAck(msg.getSenderId(), msg.getAck().getStateOrder());
+        }
         
         //при join мастер отправляет ack с receiver_id = новый playerId
         if (msg.hasReceiverId() && controller.getMyPlayerId() == -1) {
@@ -307,4 +349,10 @@ public class MessageHandler {
     private void sendAck(long msgSeq, InetAddress address, int port) {
         controller.sendAck(msgSeq, controller.getMyPlayerId(), address, port);
     }
+    
+    //подтверждает состояние с номером последнего состояния движка
+    private void sendStateAck(long msgSeq, InetAddress address, int port) {
+        int stateOrder = controller.getGameEngine() != null ? controller.getGameEngine().getField().getStateOrder() : -1;
+        controller.sendAck(msgSeq, controller.getMyPlayerId(), address, port, stateOrder);
+    }
 }
@@ -14,11 +14,21 @@ public class GameEngine {
     private final GameConfig config; //конфигурация игры
     private final Random random = new Random(); //генератор случайных чисел для размещения объектов
     private final Map<Integer, Direction> pendingMoves = new ConcurrentHashMap<>(); //очередь ожидающих ходов игроков
+    private final StateHistory stateHistory; //последние разосланные или полученные состояния для StateDeltaMsg
+    
+    //учёт позиций на ходу ведётся по номерам клеток в массивах и переиспользуется между ходами
+    private final int[] headTurn; //номер хода на котором в клетку пришла голова, индекс - номер клетки
+    private final int[] headOwner; //id змеи чья голова первой пришла в клетку на этом ходу
+    private final IntHashSet deadSnakes = new IntHashSet(16); //id змей погибших на текущем ходу
+    private int turn; //счётчик ходов для headTurn, позволяет не очищать массив
     
     //создаёт новый движок игры с заданной конфигурацией
     public GameEngine(GameConfig config) {
         this.config = config;
         this.field = new GameField(config.getWidth(), config.getHeight());
+        this.headTurn = new int[config.getWidth() * config.getHeight()];
+        this.headOwner = new int[config.getWidth() * config.getHeight()];
+        this.stateHistory = new StateHistory(config.getWidth(), config.getHeight());
     }
     
     public GameField getField() {
@@ -29,13 +39,18 @@ public class GameEngine {
         return config;
     }
     
+    public StateHistory getStateHistory() {
+        return stateHistory;
+    }
+    
     //регистрирует направление движения для игрока на следующий ход
     public void setPlayerMove(int playerId, Direction direction) {
         pendingMoves.put(playerId, direction);
     }
     
-    //выполняет один игровой ход обновляя состояние всей игры
-    public void nextTurn() {
+    //выполняет один игровой ход обновляя состояние всей игры.
+    //ход, размещение змеи и применение состояния синхронизированы, так как меняют сетку занятости поля
+    public synchronized void nextTurn() {
         applyMoves(); //применяет команды движения от игроков
         moveSnakes(); //перемещает все змеи
         checkCollisions(); //проверяет столкновения
@@ -65,63 +80,17 @@ public class GameEngine {
     
     //перемещает все змеи на одну клетку в направлении их движения
     private void moveSnakes() {
-        //кеш позиций еды для оптимизации проверок
-        Map<String, Boolean> foodAtPosition = new HashMap<>();
-        
-        //первый проход определяет где находится еда
         for (Snake snake : field.getSnakes().values()) {
             if (snake.state != GameState.Snake.SnakeState.ALIVE && 
                 snake.state != GameState.Snake.SnakeState.ZOMBIE) {
                 continue;
             }
             
-            List<Coord> cells = snake.getAllCells(field.getWidth(), field.getHeight());
-            if (cells.isEmpty()) continue;
-            
-            Coord head = cells.get(0);
-            int newX = head.getX();
-            int newY = head.getY();
+            if (snake.length() == 0) continue;
             
-            //вычисляет новую позицию головы змеи
-            switch (snake.headDirection) {
-                case UP: newY--; break;
-                case DOWN: newY++; break;
-                case LEFT: newX--; break;
-                case RIGHT: newX++; break;
-            }
-            
-            //нормализует координаты для тороидального поля
-            newX = (newX + field.getWidth()) % field.getWidth();
-            newY = (newY + field.getHeight()) % field.getHeight();
-            
-            String posKey = newX + "," + newY;
-            
-            //проверяет есть ли еда на новой позиции
-            if (!foodAtPosition.containsKey(posKey)) {
-                boolean hasFood = false;
-                for (Coord food : field.getFoods()) {
-                    if (food.getX() == newX && food.getY() == newY) {
-                        hasFood = true;
-                        break;
-                    }
-                }
-                foodAtPosition.put(posKey, hasFood);
-            }
-        }
-        
-        //второй проход выполняет фактическое перемещение змей
-        for (Snake snake : field.getSnakes().values()) {
-            if (snake.state != GameState.Snake.SnakeState.ALIVE && 
-                snake.state != GameState.Snake.SnakeState.ZOMBIE) {
-                continue;
-            }
-            
-            List<Coord> cells = snake.getAllCells(field.getWidth(), field.getHeight());
-            if (cells.isEmpty()) continue;
-            
-            Coord head = cells.get(0);
-            int newX = head.getX();
-            int newY = head.getY();
+            int head = snake.headCell();
+            int newX = head % field.getWidth();
+            int newY = head / field.getWidth();
             
             //вычисляет новую позицию головы
             switch (snake.headDirection) {
@@ -133,24 +102,14 @@ public class GameEngine {
             
             newX = (newX + field.getWidth()) % field.getWidth();
             newY = (newY + field.getHeight()) % field.getHeight();
+            int newHead = field.cellIndex(newX, newY);
             
-            Coord newHead = Coord.newBuilder().setX(newX).setY(newY).build();
-            String posKey = newX + "," + newY;
-            boolean ateFood = foodAtPosition.getOrDefault(posKey, false);
+            //если две змеи вошли в одну клетку с едой, съедает её только первая
+            boolean ateFood = field.hasFood(newHead);
             
             //если змея съела еду удаляет её и увеличивает счёт
             if (ateFood) {
-                if (foodAtPosition.get(posKey)) {
-                    Iterator<Coord> foodIter = field.getFoods().iterator();
-                    while (foodIter.hasNext()) {
-                        Coord food = foodIter.next();
-                        if (food.getX() == newX && food.getY() == newY) {
-                            foodIter.remove();
-                            break;
-                        }
-                    }
-                    foodAtPosition.put(posKey, false);
-                }
+                field.removeFood(Coord.newBuilder().setX(newX).setY(newY).build());
                 
                 PlayerInfo player = field.getPlayer(snake.playerId);
                 if (player != null) {
@@ -158,111 +117,34 @@ public class GameEngine {
                 }
             }
             
-            //создаёт новый список клеток змеи с новой головой
-            List<Coord> newCells = new ArrayList<>();
-            newCells.add(newHead);
-            newCells.addAll(cells);
-            
-            //если еда не съедена удаляет хвост змеи
+            //голова продвигается, хвост убирается если еда не съедена
+            snake.pushHead(newHead);
+            field.occupyCell(newHead);
             if (!ateFood) {
-                newCells.remove(newCells.size() - 1);
+                field.releaseCell(snake.popTail());
             }
-            
-            //компактифицирует представление змеи
-            snake.points = compactSnake(newCells);
         }
     }
     
-    //преобразует список всех клеток змеи в компактное представление со смещениями
-    private List<Coord> compactSnake(List<Coord> cells) {
-        List<Coord> points = new ArrayList<>();
-        if (cells.isEmpty()) return points;
-        
-        //добавляет голову змеи как абсолютную координату
-        points.add(cells.get(0));
-        
-        if (cells.size() == 1) return points;
-        
-        int prevX = cells.get(0).getX();
-        int prevY = cells.get(0).getY();
-        int currX = cells.get(1).getX();
-        int currY = cells.get(1).getY();
-        
-        //вычисляет начальное смещение с учётом тороидальности
-        int dx = currX - prevX;
-        int dy = currY - prevY;
-        
-        if (dx > field.getWidth() / 2) dx -= field.getWidth();
-        if (dx < -field.getWidth() / 2) dx += field.getWidth();
-        if (dy > field.getHeight() / 2) dy -= field.getHeight();
-        if (dy < -field.getHeight() / 2) dy += field.getHeight();
-        
-        int segX = dx;
-        int segY = dy;
-        
-        //объединяет последовательные смещения в одном направлении
-        for (int i = 2; i < cells.size(); i++) {
-            prevX = currX;
-            prevY = currY;
-            currX = cells.get(i).getX();
-            currY = cells.get(i).getY();
-            
-            dx = currX - prevX;
-            dy = currY - prevY;
-            
-            //нормализует смещение для тороидального поля
-            if (dx > field.getWidth() / 2) dx -= field.getWidth();
-            if (dx < -field.getWidth() / 2) dx += field.getWidth();
-            if (dy > field.getHeight() / 2) dy -= field.getHeight();
-            if (dy < -field.getHeight() / 2) dy += field.getHeight();
-            
-            //проверяет идёт ли змея в том же направлении
-            boolean sameDir = false;
-            if (segX != 0) {
-                sameDir = (dx == Integer.signum(segX) && dy == 0);
-            } else if (segY != 0) {
-                sameDir = (dy == Integer.signum(segY) && dx == 0);
-            }
-            
-            //либо продолжает текущий сегмент либо создаёт новый
-            if (sameDir) {
-                segX += dx;
-                segY += dy;
-            } else {
-                points.add(Coord.newBuilder().setX(segX).setY(segY).build());
-                segX = dx;
-                segY = dy;
-            }
-        }
-        
-        //добавляет последний сегмент
-        points.add(Coord.newBuilder().setX(segX).setY(segY).build());
-        
-        return points;
-    }
-    
     //проверяет столкновения змей между собой и сами с собой
     private void checkCollisions() {
-        //собирает позиции голов всех змей
-        Map<String, List<Integer>> headPositions = new HashMap<>();
-        Set<Integer> deadSnakes = new HashSet<>();
+        turn++;
+        deadSnakes.clear();
         
+        //отмечает клетки голов, если несколько змей столкнулись головами все они погибают
         for (Snake snake : field.getSnakes().values()) {
             if (snake.state != GameState.Snake.SnakeState.ALIVE && 
                 snake.state != GameState.Snake.SnakeState.ZOMBIE) continue;
                 
-            List<Coord> cells = snake.getAllCells(field.getWidth(), field.getHeight());
-            if (cells.isEmpty()) continue;
+            if (snake.length() == 0) continue;
             
-            Coord head = cells.get(0);
-            String posKey = head.getX() + "," + head.getY();
-            headPositions.computeIfAbsent(posKey, k -> new ArrayList<>()).add(snake.playerId);
-        }
-        
-        //если несколько змей столкнулись головами все они погибают
-        for (List<Integer> playerIds : headPositions.values()) {
-            if (playerIds.size() > 1) {
-                deadSnakes.addAll(playerIds);
+            int head = snake.headCell();
+            if (headTurn[head] == turn) {
+                deadSnakes.add(headOwner[head]);
+                deadSnakes.add(snake.playerId);
+            } else {
+                headTurn[head] = turn;
+                headOwner[head] = snake.playerId;
             }
         }
         
@@ -272,27 +154,23 @@ public class GameEngine {
                 snake.state != GameState.Snake.SnakeState.ZOMBIE) continue;
             
             if (deadSnakes.contains(snake.playerId)) continue;
-                
-            List<Coord> cells = snake.getAllCells(field.getWidth(), field.getHeight());
-            if (cells.isEmpty()) continue;
+            if (snake.length() == 0) continue;
+            
+            int head = snake.headCell();
             
-            Coord head = cells.get(0);
-            int headX = head.getX();
-            int headY = head.getY();
+            //в клетке головы только она сама - столкновения нет
+            if (field.getSnakeCellCount(head) <= 1) continue;
             
-            //проверяет столкновение со всеми змеями включая себя
+            //столкновение редкое, поэтому владельца клетки ищет перебором только в этом случае
             for (Snake other : field.getSnakes().values()) {
                 if (other.state != GameState.Snake.SnakeState.ALIVE && 
                     other.state != GameState.Snake.SnakeState.ZOMBIE) continue;
                     
-                List<Coord> otherCells = other.getAllCells(field.getWidth(), field.getHeight());
-                
                 //для своей змеи проверяет начиная со второго сегмента
                 int startIdx = (other.playerId == snake.playerId) ? 1 : 0;
                 
-                for (int i = startIdx; i < otherCells.size(); i++) {
-                    Coord cell = otherCells.get(i);
-                    if (cell.getX() == headX && cell.getY() == headY) {
+                for (int i = startIdx; i < other.length(); i++) {
+                    if (other.cellAt(i) == head) {
                         deadSnakes.add(snake.playerId);
                         
                         //начисляет очко игроку чьё тело столкнулось с головой
@@ -309,8 +187,10 @@ public class GameEngine {
             }
         }
         
-        //превращает все мёртвые змеи в еду
-        for (int playerId : deadSnakes) {
+        //превращает все мёртвые змеи в еду по возрастанию id, чтобы порядок не зависел от множества
+        int[] dead = deadSnakes.toArray();
+        Arrays.sort(dead);
+        for (int playerId : dead) {
             Snake snake = field.getSnakes().get(playerId);
             if (snake != null) {
                 removeSnakeToFood(snake);
@@ -320,21 +200,12 @@ public class GameEngine {
     
     //превращает мёртвую змею в еду с вероятностью 50% для каждой клетки
     private void removeSnakeToFood(Snake snake) {
-        List<Coord> cells = snake.getAllCells(field.getWidth(), field.getHeight());
+        List<Coord> cells = snake.getAllCells();
         
         //каждая клетка змеи может стать едой с вероятностью 50%
         for (Coord cell : cells) {
             if (random.nextDouble() < 0.5) {
-                boolean exists = false;
-                for (Coord f : field.getFoods()) {
-                    if (f.getX() == cell.getX() && f.getY() == cell.getY()) {
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) {
-                    field.addFood(cell);
-                }
+                field.addFood(cell);
             }
         }
         
@@ -363,47 +234,27 @@ public class GameEngine {
         int currentFood = field.getFoods().size();
         int toSpawn = requiredFood - currentFood;
         
-        //собирает все занятые клетки
-        Set<String> occupiedCells = new HashSet<>();
-        for (Snake snake : field.getSnakes().values()) {
-            for (Coord cell : snake.getAllCells(field.getWidth(), field.getHeight())) {
-                occupiedCells.add(cell.getX() + "," + cell.getY());
-            }
-        }
-        for (Coord food : field.getFoods()) {
-            occupiedCells.add(food.getX() + "," + food.getY());
-        }
-        
-        int attempts = 0;
-        int maxAttempts = field.getWidth() * field.getHeight();
-        
-        //пытается разместить еду на свободных клетках
-        while (toSpawn > 0 && attempts < maxAttempts) {
-            int x = random.nextInt(field.getWidth());
-            int y = random.nextInt(field.getHeight());
-            String key = x + "," + y;
+        //берёт случайные клетки из списка свободных, пока еды не хватает и место есть
+        while (toSpawn > 0) {
+            int cell = field.randomFreeCell(random);
+            if (cell < 0) break;
             
-            if (!occupiedCells.contains(key)) {
-                Coord food = Coord.newBuilder().setX(x).setY(y).build();
-                field.addFood(food);
-                occupiedCells.add(key);
-                toSpawn--;
-            }
-            attempts++;
+            Coord food = Coord.newBuilder().setX(cell % field.getWidth()).setY(cell / field.getWidth()).build();
+            field.addFood(food);
+            toSpawn--;
         }
     }
     
     //размещает новую змею для игрока на случайной свободной позиции
-    public boolean placeNewSnake(int playerId) {
-        //делает до 100 попыток найти свободное место
-        for (int attempt = 0; attempt < 100; attempt++) {
-            int centerX = random.nextInt(field.getWidth());
-            int centerY = random.nextInt(field.getHeight());
-            
-            //проверяет свободна ли область 5х5 клеток
-            if (!field.canPlaceSnake(centerX, centerY)) {
-                continue;
-            }
+    public synchronized boolean placeNewSnake(int playerId) {
+        //поле хранит список свободных областей 5х5, поэтому место находится сразу даже на почти заполненном поле.
+        //центр выбирается случайно, а если на месте змеи лежит еда - перебираются остальные центры
+        int candidates = field.getFreeSquareCount();
+        int first = candidates > 0 ? random.nextInt(candidates) : 0;
+        for (int i = 0; i < candidates; i++) {
+            int center = field.getFreeSquare((first + i) % candidates);
+            int centerX = center % field.getWidth();
+            int centerY = center / field.getWidth();
             
             //выбирает случайное направление для хвоста
             Direction[] directions = {Direction.UP, Direction.DOWN, Direction.LEFT, Direction.RIGHT};
@@ -424,15 +275,7 @@ public class GameEngine {
             tailY = (tailY + field.getHeight()) % field.getHeight();
             
             //проверяет что на змее нет еды
-            boolean hasFoodOnSnake = false;
-            for (Coord food : field.getFoods()) {
-                if ((food.getX() == centerX && food.getY() == centerY) ||
-                    (food.getX() == tailX && food.getY() == tailY)) {
-                    hasFoodOnSnake = true;
-                    break;
-                }
-            }
-            if (hasFoodOnSnake) continue;
+            if (field.hasFood(centerX, centerY) || field.hasFood(tailX, tailY)) continue;
             
             //направление головы противоположно направлению хвоста
             Direction headDir = getOppositeDirection(tailDir);
@@ -449,7 +292,7 @@ public class GameEngine {
             
             //создаёт змею из двух клеток
             List<Coord> points = Arrays.asList(head, tail);
-            Snake snake = new Snake(playerId, points, headDir);
+            Snake snake = new Snake(playerId, points, headDir, field.getWidth(), field.getHeight());
             
             field.addSnake(playerId, snake);
             return true;
@@ -487,7 +330,7 @@ public class GameEngine {
         for (Snake snake : field.getSnakes().values()) {
             GameState.Snake.Builder snakeBuilder = GameState.Snake.newBuilder();
             snakeBuilder.setPlayerId(snake.playerId);
-            snakeBuilder.addAllPoints(snake.points);
+            snakeBuilder.addAllPoints(snake.getKeyPoints());
             snakeBuilder.setState(snake.state);
             snakeBuilder.setHeadDirection(snake.headDirection);
             stateBuilder.addSnakes(snakeBuilder.build());
@@ -520,25 +363,34 @@ public class GameEngine {
         return stateBuilder.build();
     }
     
-    //применяет полученное состояние игры к текущему полю
-    public void applyGameState(GameState state) {
+    //применяет полученное состояние игры к текущему полю.
+    //возвращает false если состояние некорректно, тогда поле остаётся прежним
+    public synchronized boolean applyGameState(GameState state) {
         //игнорирует старые состояния
         if (state.getStateOrder() <= field.getStateOrder()) {
-            return;
+            return true;
+        }
+        
+        //еда вне поля - испорченное состояние, проверяется до того как поле начнёт меняться
+        for (Coord food : state.getFoodsList()) {
+            if (!field.isInside(food)) {
+                return false;
+            }
         }
         
         //очищает и восстанавливает змей
-        field.getSnakes().clear();
+        field.clearSnakes();
         for (GameState.Snake protoSnake : state.getSnakesList()) {
             Snake snake = new Snake(protoSnake.getPlayerId(), 
                                    protoSnake.getPointsList(), 
-                                   protoSnake.getHeadDirection());
+                                   protoSnake.getHeadDirection(),
+                                   field.getWidth(), field.getHeight());
             snake.state = protoSnake.getState();
             field.addSnake(snake.playerId, snake);
         }
         
         //очищает и восстанавливает еду
-        field.getFoods().clear();
+        field.clearFoods();
         for (Coord food : state.getFoodsList()) {
             field.addFood(food);
         }
@@ -561,6 +413,7 @@ public class GameEngine {
         while (field.getStateOrder() < state.getStateOrder()) {
             field.incrementStateOrder();
         }
+        return true;
     }
     
     //обновляет роль игрока в игре
@@ -13,6 +13,18 @@ public class GameField {
     private final Set<Coord> foods; //множество координат еды на поле
     private final Map<Integer, PlayerInfo> players; //информация о всех игроках по id
     private int stateOrder; //порядковый номер текущего состояния игры
+    private final int[] snakeCells; //сколько сегментов змей стоит в каждой клетке, индекс y * width + x
+    private final boolean[] foodCells; //есть ли еда в клетке, индекс как у snakeCells
+    private int occupiedCells; //количество клеток занятых хотя бы одной змеёй
+    private final int[] freeCells; //номера свободных клеток (без змей и еды) в произвольном порядке
+    private final int[] freeIndex; //позиция клетки в freeCells или -1 если клетка занята
+    private int freeCount; //количество свободных клеток
+    private final int[] squareCounts; //сколько занятых змеями клеток в области 5х5 с центром в клетке
+    private final int[] freeSquares; //центры областей 5х5 без змей в произвольном порядке
+    private final int[] freeSquareIndex; //позиция центра в freeSquares или -1
+    private int freeSquareCount; //количество свободных областей 5х5
+    private final int[] wrapX; //x + 2 -> x по модулю ширины для x из [-2, width + 2)
+    private final int[] wrapRow; //y + 2 -> (y по модулю высоты) * width
     
     //хранит информацию об игроке в игре
     public static class PlayerInfo {
@@ -22,6 +34,7 @@ public class GameField {
         public int score; //текущий счёт игрока
         public String ipAddress; //ip адрес игрока
         public int port; //порт для сетевого соединения
+        public boolean supportsDelta; //игрок прислал JoinMsg.supports_delta и получает StateDeltaMsg
         
         //создаёт информацию об игроке с начальным счётом 0
         public PlayerInfo(String name, int id, NodeRole role) {
@@ -32,30 +45,33 @@ public class GameField {
         }
     }
     
-    //представляет змею на игровом поле
+    //представляет змею на игровом поле. тело хранится кольцевым буфером номеров клеток (y * width + x):
+    //ход добавляет голову в начало и убирает хвост с конца без пересборки тела,
+    //а ключевые точки protobuf строятся только при сериализации состояния
     public static class Snake {
         public int playerId; //id игрока которому принадлежит змея
-        public List<Coord> points; //список координат сегментов змеи
         public GameState.Snake.SnakeState state; //состояние змеи (alive/dead)
         public Direction headDirection; //направление движения головы змеи
+        private final int width; //размеры поля для перевода номера клетки в координаты
+        private final int height;
+        private int[] cells; //кольцевой буфер клеток, размер степень двойки
+        private int head; //индекс головы в буфере
+        private int length; //количество клеток змеи
         
-        //создаёт новую живую змею с заданными координатами и направлением
-        public Snake(int playerId, List<Coord> points, Direction headDirection) {
+        //создаёт новую живую змею по ключевым точкам (голова и смещения) и направлению
+        public Snake(int playerId, List<Coord> points, Direction headDirection, int width, int height) {
             this.playerId = playerId;
-            this.points = new ArrayList<>(points);
             this.state = GameState.Snake.SnakeState.ALIVE;
             this.headDirection = headDirection;
-        }
-        
-        //возвращает все клетки которые занимает змея с учётом тороидального поля
-        public List<Coord> getAllCells(int width, int height) {
-            List<Coord> cells = new ArrayList<>();
-            if (points.isEmpty()) return cells;
+            this.width = width;
+            this.height = height;
+            this.cells = new int[16];
+            if (points.isEmpty()) return;
             
-            //добавляет голову змеи
-            int x = points.get(0).getX();
-            int y = points.get(0).getY();
-            cells.add(Coord.newBuilder().setX(x).setY(y).build());
+            //добавляет голову змеи. точки могут прийти из сети, голова приводится на поле как и остальные клетки
+            int x = Math.floorMod(points.get(0).getX(), width);
+            int y = Math.floorMod(points.get(0).getY(), height);
+            appendTail(y * width + x);
             
             //проходит по всем сегментам змеи начиная со второго
             for (int i = 1; i < points.size(); i++) {
@@ -65,17 +81,111 @@ public class GameField {
                 
                 //вычисляет количество шагов в этом сегменте
                 int steps = Math.max(Math.abs(dx), Math.abs(dy));
-                int stepX = dx == 0 ? 0 : dx / Math.abs(dx);
-                int stepY = dy == 0 ? 0 : dy / Math.abs(dy);
+                int stepX = Integer.signum(dx);
+                int stepY = Integer.signum(dy);
                 
                 //добавляет каждую клетку сегмента с учётом тороидального поля
                 for (int j = 1; j <= steps; j++) {
                     x = (x + stepX + width) % width;
                     y = (y + stepY + height) % height;
-                    cells.add(Coord.newBuilder().setX(x).setY(y).build());
+                    appendTail(y * width + x);
+                }
+            }
+        }
+        
+        public int length() { return length; }
+        public int headCell() { return cells[head]; }
+        
+        //возвращает номер i-й клетки считая от головы
+        public int cellAt(int i) {
+            return cells[(head + i) & (cells.length - 1)];
+        }
+        
+        //добавляет новую голову перед текущей
+        public synchronized void pushHead(int cell) {
+            ensureCapacity();
+            head = (head - 1) & (cells.length - 1);
+            cells[head] = cell;
+            length++;
+        }
+        
+        //убирает хвост и возвращает его клетку
+        public synchronized int popTail() {
+            length--;
+            return cells[(head + length) & (cells.length - 1)];
+        }
+        
+        private void appendTail(int cell) {
+            ensureCapacity();
+            cells[(head + length) & (cells.length - 1)] = cell;
+            length++;
+        }
+        
+        //при заполнении буфер удваивается, голова переносится в начало
+        private void ensureCapacity() {
+            if (length < cells.length) return;
+            int[] grown = new int[cells.length * 2];
+            for (int i = 0; i < length; i++) {
+                grown[i] = cellAt(i);
+            }
+            cells = grown;
+            head = 0;
+        }
+        
+        //возвращает все клетки которые занимает змея начиная с головы
+        public synchronized List<Coord> getAllCells() {
+            List<Coord> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                int cell = cellAt(i);
+                result.add(Coord.newBuilder().setX(cell % width).setY(cell / width).build());
+            }
+            return result;
+        }
+        
+        //строит ключевые точки для protobuf: голова абсолютной координатой,
+        //затем смещения между точками поворота с учётом тороидального поля
+        public synchronized List<Coord> getKeyPoints() {
+            return getKeyPoints(length);
+        }
+        
+        //ключевые точки первых count клеток от головы
+        public synchronized List<Coord> getKeyPoints(int count) {
+            List<Coord> points = new ArrayList<>();
+            if (count == 0) return points;
+            
+            int prev = cellAt(0);
+            points.add(Coord.newBuilder().setX(prev % width).setY(prev / width).build());
+            
+            int segX = 0;
+            int segY = 0;
+            for (int i = 1; i < count; i++) {
+                int curr = cellAt(i);
+                int dx = curr % width - prev % width;
+                int dy = curr / width - prev / width;
+                
+                //нормализует смещение для тороидального поля
+                if (dx > width / 2) dx -= width;
+                if (dx < -width / 2) dx += width;
+                if (dy > height / 2) dy -= height;
+                if (dy < -height / 2) dy += height;
+                
+                //либо продолжает текущий сегмент либо начинает новый
+                boolean sameDir = (segX != 0 && dy == 0 && dx == Integer.signum(segX)) ||
+                                  (segY != 0 && dx == 0 && dy == Integer.signum(segY));
+                if (sameDir || (segX == 0 && segY == 0)) {
+                    segX += dx;
+                    segY += dy;
+                } else {
+                    points.add(Coord.newBuilder().setX(segX).setY(segY).build());
+                    segX = dx;
+                    segY = dy;
                 }
+                prev = curr;
+            }
+            if (segX != 0 || segY != 0) {
+                points.add(Coord.newBuilder().setX(segX).setY(segY).build());
             }
-            return cells;
+            return points;
         }
     }
     
@@ -87,6 +197,22 @@ public class GameField {
         this.foods = ConcurrentHashMap.newKeySet();
         this.players = new ConcurrentHashMap<>();
         this.stateOrder = 0;
+        this.snakeCells = new int[width * height];
+        this.foodCells = new boolean[width * height];
+        this.freeCells = new int[width * height];
+        this.freeIndex = new int[width * height];
+        this.squareCounts = new int[width * height];
+        this.freeSquares = new int[width * height];
+        this.freeSquareIndex = new int[width * height];
+        this.wrapX = new int[width + 4];
+        this.wrapRow = new int[height + 4];
+        for (int i = 0; i < wrapX.length; i++) {
+            wrapX[i] = (i - 2 + width * 2) % width;
+        }
+        for (int i = 0; i < wrapRow.length; i++) {
+            wrapRow[i] = (i - 2 + height * 2) % height * width;
+        }
+        rebuildFreeCells();
     }
     
     public int getWidth() { return width; }
@@ -95,28 +221,120 @@ public class GameField {
     public Set<Coord> getFoods() { return foods; }
     public Map<Integer, PlayerInfo> getPlayers() { return players; }
     public int getStateOrder() { return stateOrder; }
+    public int getOccupiedCellCount() { return occupiedCells; }
+    public int getFreeCellCount() { return freeCount; }
+    public int getFreeSquareCount() { return freeSquareCount; }
     
     //увеличивает счётчик порядка состояния на единицу
     public void incrementStateOrder() { stateOrder++; }
     
-    //добавляет змею на поле для конкретного игрока
+    //добавляет змею на поле для конкретного игрока и отмечает её клетки в сетке
     public void addSnake(int playerId, Snake snake) {
-        snakes.put(playerId, snake);
+        Snake old = snakes.put(playerId, snake);
+        if (old != null) {
+            releaseSnakeCells(old);
+        }
+        for (int i = 0; i < snake.length(); i++) {
+            occupyCell(snake.cellAt(i));
+        }
     }
     
     //удаляет змею игрока с поля
     public void removeSnake(int playerId) {
-        snakes.remove(playerId);
+        Snake snake = snakes.remove(playerId);
+        if (snake != null) {
+            releaseSnakeCells(snake);
+        }
+    }
+    
+    //удаляет всех змей с поля
+    public void clearSnakes() {
+        snakes.clear();
+        Arrays.fill(snakeCells, 0);
+        occupiedCells = 0;
+        Arrays.fill(squareCounts, 0);
+        rebuildFreeCells();
+    }
+    
+    private void releaseSnakeCells(Snake snake) {
+        for (int i = 0; i < snake.length(); i++) {
+            releaseCell(snake.cellAt(i));
+        }
+    }
+    
+    //номер клетки в сетке и в теле змеи
+    public int cellIndex(int x, int y) {
+        return y * width + x;
+    }
+    
+    //отмечает что в клетку вошёл сегмент змеи (новая голова)
+    public void occupyCell(int cell) {
+        if (snakeCells[cell]++ == 0) {
+            occupiedCells++;
+            updateSquares(cell, 1);
+            updateFreeCell(cell);
+        }
+    }
+    
+    //отмечает что сегмент змеи покинул клетку (убранный хвост)
+    public void releaseCell(int cell) {
+        if (--snakeCells[cell] == 0) {
+            occupiedCells--;
+            updateSquares(cell, -1);
+            updateFreeCell(cell);
+        }
+    }
+    
+    //сколько сегментов змей стоит в клетке, больше одного означает столкновение
+    public int getSnakeCellCount(int cell) {
+        return snakeCells[cell];
+    }
+    
+    //проверяет что координата лежит на поле
+    public boolean isInside(Coord coord) {
+        return coord.getX() >= 0 && coord.getX() < width && coord.getY() >= 0 && coord.getY() < height;
     }
     
     //добавляет еду на указанную координату
     public void addFood(Coord food) {
-        foods.add(food);
+        if (!isInside(food)) {
+            throw new IllegalArgumentException("Food outside the field: " + food.getX() + "," + food.getY());
+        }
+        int index = food.getY() * width + food.getX();
+        if (!foodCells[index]) {
+            foodCells[index] = true;
+            //координата без явно заданных полей не равна построенной через setX/setY и не удалилась бы из множества
+            if (!food.hasX() || !food.hasY()) {
+                food = Coord.newBuilder().setX(food.getX()).setY(food.getY()).build();
+            }
+            foods.add(food);
+            updateFreeCell(index);
+        }
     }
     
     //удаляет еду с указанной координаты
     public void removeFood(Coord food) {
-        foods.remove(food);
+        if (foods.remove(food)) {
+            int index = food.getY() * width + food.getX();
+            foodCells[index] = false;
+            updateFreeCell(index);
+        }
+    }
+    
+    //удаляет всю еду с поля
+    public void clearFoods() {
+        foods.clear();
+        Arrays.fill(foodCells, false);
+        rebuildFreeCells();
+    }
+    
+    //проверяет есть ли еда в клетке
+    public boolean hasFood(int x, int y) {
+        return foodCells[y * width + x];
+    }
+    
+    public boolean hasFood(int cell) {
+        return foodCells[cell];
     }
     
     //добавляет игрока в игру
@@ -136,32 +354,79 @@ public class GameField {
     
     //проверяет занята ли клетка какой-либо змеёй
     public boolean isCellOccupied(int x, int y) {
-        Coord coord = Coord.newBuilder().setX(x).setY(y).build();
-        
-        //проверяет все змеи на поле
-        for (Snake snake : snakes.values()) {
-            for (Coord cell : snake.getAllCells(width, height)) {
-                if (cell.getX() == x && cell.getY() == y) {
-                    return true;
+        return snakeCells[y * width + x] > 0;
+    }
+    
+    //возвращает случайную клетку без змей и еды или -1 если таких нет
+    public int randomFreeCell(Random random) {
+        return freeCount == 0 ? -1 : freeCells[random.nextInt(freeCount)];
+    }
+    
+    //добавляет клетку в список свободных или убирает из него (обменом с последней)
+    private void updateFreeCell(int cell) {
+        boolean free = snakeCells[cell] == 0 && !foodCells[cell];
+        int index = freeIndex[cell];
+        if (free && index < 0) {
+            freeIndex[cell] = freeCount;
+            freeCells[freeCount++] = cell;
+        } else if (!free && index >= 0) {
+            int last = freeCells[--freeCount];
+            freeCells[index] = last;
+            freeIndex[last] = index;
+            freeIndex[cell] = -1;
+        }
+    }
+    
+    private void rebuildFreeCells() {
+        freeCount = 0;
+        freeSquareCount = 0;
+        for (int cell = 0; cell < freeIndex.length; cell++) {
+            freeIndex[cell] = -1;
+            updateFreeCell(cell);
+            freeSquareIndex[cell] = -1;
+            updateFreeSquare(cell);
+        }
+    }
+    
+    //клетка стала занятой или свободной: меняет счётчики всех 25 областей 5х5, в которые она входит.
+    //список свободных областей трогается только когда счётчик переходит через ноль
+    private void updateSquares(int cell, int delta) {
+        int x = cell % width;
+        int y = cell / width;
+        for (int dy = 0; dy < 5; dy++) {
+            int row = wrapRow[y + dy];
+            for (int dx = 0; dx < 5; dx++) {
+                int center = row + wrapX[x + dx];
+                int count = squareCounts[center] += delta;
+                if (count == 0 || (count == delta && delta > 0)) {
+                    updateFreeSquare(center);
                 }
             }
         }
-        return false;
+    }
+    
+    private void updateFreeSquare(int center) {
+        boolean free = squareCounts[center] == 0;
+        int index = freeSquareIndex[center];
+        if (free && index < 0) {
+            freeSquareIndex[center] = freeSquareCount;
+            freeSquares[freeSquareCount++] = center;
+        } else if (!free && index >= 0) {
+            int last = freeSquares[--freeSquareCount];
+            freeSquares[index] = last;
+            freeSquareIndex[last] = index;
+            freeSquareIndex[center] = -1;
+        }
+    }
+    
+    //возвращает i-й центр свободной области 5х5, порядок произвольный
+    public int getFreeSquare(int i) {
+        return freeSquares[i];
     }
     
     //проверяет можно ли разместить новую змею в области 5х5 клеток с центром в указанной точке
     public boolean canPlaceSnake(int centerX, int centerY) {
-        //проходит по квадрату 5х5 клеток
-        for (int dx = -2; dx <= 2; dx++) {
-            for (int dy = -2; dy <= 2; dy++) {
-                int x = (centerX + dx + width) % width;
-                int y = (centerY + dy + height) % height;
-                if (isCellOccupied(x, y)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return squareCounts[centerY * width + centerX] == 0;
     }
     
     //нормализует координаты для тороидального поля (зацикливает границы)
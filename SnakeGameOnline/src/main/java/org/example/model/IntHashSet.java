@@ -0,0 +1,85 @@
+package org.example.model;
+
+import java.util.Arrays;
+
+//множество int без упаковки в Integer: открытая адресация с линейным пробированием.
+//объект переиспользуется между ходами, clear очищает только занятые ячейки
+class IntHashSet {
+    private static final int FREE = Integer.MIN_VALUE; //метка пустой ячейки, такой ключ хранить нельзя
+    private static final int[] EMPTY = new int[0];
+
+    private int[] table; //ячейки таблицы, размер степень двойки
+    private int[] order; //ключи в порядке добавления для clear и toArray
+    private int size; //количество ключей
+
+    //создаёт множество рассчитанное примерно на expected ключей без расширения
+    IntHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        table = new int[capacity];
+        Arrays.fill(table, FREE);
+        order = new int[capacity / 2];
+    }
+
+    int size() { return size; }
+
+    //добавляет ключ, возвращает false если он уже был
+    boolean add(int key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != FREE) {
+            if (table[slot] == key) return false;
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = key;
+        order[size++] = key;
+        //заполненность не больше половины, иначе пробы становятся длинными
+        if (size == order.length) {
+            grow();
+        }
+        return true;
+    }
+
+    boolean contains(int key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != FREE) {
+            if (table[slot] == key) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    void clear() {
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = mix(order[i]) & mask;
+            while (table[slot] != FREE) {
+                table[slot] = FREE;
+                slot = (slot + 1) & mask;
+            }
+        }
+        size = 0;
+    }
+
+    //ключи в порядке добавления
+    int[] toArray() {
+        return size == 0 ? EMPTY : Arrays.copyOf(order, size);
+    }
+
+    private void grow() {
+        int[] keys = Arrays.copyOf(order, size);
+        table = new int[table.length * 2];
+        Arrays.fill(table, FREE);
+        order = new int[table.length / 2];
+        size = 0;
+        for (int key : keys) {
+            add(key);
+        }
+    }
+
+    //перемешивает биты чтобы близкие ключи не шли подряд в таблице
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,219 @@
+package org.example.model;
+
+import me.ippolitov.fit.snakes.SnakesProto.*;
+import me.ippolitov.fit.snakes.SnakesProto.GameMessage.StateDeltaMsg;
+import me.ippolitov.fit.snakes.SnakesProto.GameState.Coord;
+import org.example.model.GameField.Snake;
+
+import java.util.*;
+
+//последние состояния игры по state_order. мастер строит по ним StateDeltaMsg от состояния, которое игрок
+//подтвердил, а игрок восстанавливает из изменений полное состояние и дальше применяет его как обычный StateMsg
+public class StateHistory {
+    public static final int CAPACITY = 32; //сколько последних состояний хранится
+
+    private final int width; //размеры поля для разбора змей на клетки
+    private final int height;
+    private final GameState[] states = new GameState[CAPACITY]; //кольцо, индекс state_order по модулю CAPACITY
+
+    public StateHistory(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public synchronized void put(GameState state) {
+        states[Math.floorMod(state.getStateOrder(), CAPACITY)] = state;
+    }
+
+    //возвращает состояние с таким номером или null если его нет или оно уже вытеснено
+    public synchronized GameState get(int stateOrder) {
+        GameState state = states[Math.floorMod(stateOrder, CAPACITY)];
+        return state != null && state.getStateOrder() == stateOrder ? state : null;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(states, null);
+    }
+
+    //строит изменения от base к current: сдвиги змей, разницу еды и изменившихся игроков
+    public StateDeltaMsg buildDelta(GameState base, GameState current) {
+        StateDeltaMsg.Builder delta = StateDeltaMsg.newBuilder()
+                .setBaseStateOrder(base.getStateOrder())
+                .setStateOrder(current.getStateOrder());
+
+        Map<Integer, GameState.Snake> baseSnakes = new HashMap<>();
+        for (GameState.Snake snake : base.getSnakesList()) {
+            baseSnakes.put(snake.getPlayerId(), snake);
+        }
+        for (GameState.Snake snake : current.getSnakesList()) {
+            GameState.Snake old = baseSnakes.remove(snake.getPlayerId());
+            if (snake.equals(old)) continue;
+
+            //новая змея или змея, которую нельзя описать сдвигом головы и хвоста, передаётся целиком
+            StateDeltaMsg.SnakeDelta snakeDelta = old == null ? null : diffSnake(old, snake);
+            if (snakeDelta != null) {
+                delta.addSnakeDeltas(snakeDelta);
+            } else {
+                delta.addSnakes(snake);
+            }
+        }
+        for (int playerId : baseSnakes.keySet()) {
+            delta.addRemovedSnakes(playerId);
+        }
+
+        Set<Integer> baseFoods = foodCells(base);
+        Set<Integer> currentFoods = foodCells(current);
+        for (Coord food : current.getFoodsList()) {
+            if (!baseFoods.contains(cellOf(food))) delta.addAddedFoods(food);
+        }
+        for (Coord food : base.getFoodsList()) {
+            if (!currentFoods.contains(cellOf(food))) delta.addRemovedFoods(food);
+        }
+
+        Map<Integer, GamePlayer> basePlayers = new HashMap<>();
+        for (GamePlayer player : base.getPlayers().getPlayersList()) {
+            basePlayers.put(player.getId(), player);
+        }
+        for (GamePlayer player : current.getPlayers().getPlayersList()) {
+            if (!player.equals(basePlayers.remove(player.getId()))) {
+                delta.addPlayers(player);
+            }
+        }
+        for (int playerId : basePlayers.keySet()) {
+            delta.addRemovedPlayers(playerId);
+        }
+
+        return delta.build();
+    }
+
+    //восстанавливает полное состояние из изменений, или null если базового состояния нет
+    //или изменения к нему не подходят - тогда нужно ждать полного состояния
+    public GameState applyDelta(StateDeltaMsg delta) {
+        GameState base = get(delta.getBaseStateOrder());
+        if (base == null) return null;
+
+        Map<Integer, GameState.Snake> snakes = new LinkedHashMap<>();
+        for (GameState.Snake snake : base.getSnakesList()) {
+            snakes.put(snake.getPlayerId(), snake);
+        }
+        for (int playerId : delta.getRemovedSnakesList()) {
+            snakes.remove(playerId);
+        }
+        for (StateDeltaMsg.SnakeDelta snakeDelta : delta.getSnakeDeltasList()) {
+            GameState.Snake old = snakes.get(snakeDelta.getPlayerId());
+            GameState.Snake moved = old == null ? null : applySnakeDelta(old, snakeDelta);
+            if (moved == null) return null;
+            snakes.put(moved.getPlayerId(), moved);
+        }
+        for (GameState.Snake snake : delta.getSnakesList()) {
+            snakes.put(snake.getPlayerId(), snake);
+        }
+
+        Map<Integer, Coord> foods = new LinkedHashMap<>();
+        for (Coord food : base.getFoodsList()) {
+            foods.put(cellOf(food), food);
+        }
+        for (Coord food : delta.getRemovedFoodsList()) {
+            foods.remove(cellOf(food));
+        }
+        for (Coord food : delta.getAddedFoodsList()) {
+            foods.put(cellOf(food), food);
+        }
+
+        Map<Integer, GamePlayer> players = new LinkedHashMap<>();
+        for (GamePlayer player : base.getPlayers().getPlayersList()) {
+            players.put(player.getId(), player);
+        }
+        for (int playerId : delta.getRemovedPlayersList()) {
+            players.remove(playerId);
+        }
+        for (GamePlayer player : delta.getPlayersList()) {
+            players.put(player.getId(), player);
+        }
+
+        return GameState.newBuilder()
+                .setStateOrder(delta.getStateOrder())
+                .addAllSnakes(snakes.values())
+                .addAllFoods(foods.values())
+                .setPlayers(GamePlayers.newBuilder().addAllPlayers(players.values()).build())
+                .build();
+    }
+
+    //ищет бывшую голову в новом теле: клетки перед ней - новые, остальные должны совпасть с началом старого тела
+    private StateDeltaMsg.SnakeDelta diffSnake(GameState.Snake old, GameState.Snake snake) {
+        Snake before = toSnake(old);
+        Snake after = toSnake(snake);
+        if (before.length() == 0 || after.length() == 0) return null;
+
+        int advance = -1;
+        for (int i = 0; i < after.length(); i++) {
+            if (after.cellAt(i) == before.headCell()) {
+                advance = i;
+                break;
+            }
+        }
+        if (advance < 0) return null;
+
+        int kept = after.length() - advance;
+        if (kept > before.length()) return null;
+        for (int i = 0; i < kept; i++) {
+            if (after.cellAt(advance + i) != before.cellAt(i)) return null;
+        }
+
+        StateDeltaMsg.SnakeDelta.Builder snakeDelta = StateDeltaMsg.SnakeDelta.newBuilder()
+                .setPlayerId(snake.getPlayerId())
+                .setState(snake.getState())
+                .setHeadDirection(snake.getHeadDirection());
+        if (advance > 0) {
+            snakeDelta.addAllHeadPoints(after.getKeyPoints(advance + 1));
+        }
+        if (kept < before.length()) {
+            snakeDelta.setTailRemoved(before.length() - kept);
+        }
+        return snakeDelta.build();
+    }
+
+    private GameState.Snake applySnakeDelta(GameState.Snake old, StateDeltaMsg.SnakeDelta snakeDelta) {
+        Snake snake = toSnake(old);
+        //старая голова всегда остаётся в теле, поэтому убрать можно меньше клеток чем было
+        int tailRemoved = snakeDelta.getTailRemoved();
+        if (tailRemoved < 0 || tailRemoved >= snake.length()) return null;
+        int oldHead = snake.headCell();
+        for (int i = 0; i < tailRemoved; i++) {
+            snake.popTail();
+        }
+
+        if (snakeDelta.getHeadPointsCount() > 0) {
+            //последняя клетка новых точек - старая голова, остальные добавляются перед ней
+            Snake head = new Snake(snake.playerId, snakeDelta.getHeadPointsList(), snakeDelta.getHeadDirection(), width, height);
+            int advance = head.length() - 1;
+            if (advance < 1 || head.cellAt(advance) != oldHead) return null;
+            for (int i = advance - 1; i >= 0; i--) {
+                snake.pushHead(head.cellAt(i));
+            }
+        }
+
+        return GameState.Snake.newBuilder()
+                .setPlayerId(old.getPlayerId())
+                .addAllPoints(snake.getKeyPoints())
+                .setState(snakeDelta.getState())
+                .setHeadDirection(snakeDelta.getHeadDirection())
+                .build();
+    }
+
+    private Snake toSnake(GameState.Snake snake) {
+        return new Snake(snake.getPlayerId(), snake.getPointsList(), snake.getHeadDirection(), width, height);
+    }
+
+    private Set<Integer> foodCells(GameState state) {
+        Set<Integer> cells = new HashSet<>();
+        for (Coord food : state.getFoodsList()) {
+            cells.add(cellOf(food));
+        }
+        return cells;
+    }
+
+    private int cellOf(Coord coord) {
+        return coord.getY() * width + coord.getX();
+    }
+}
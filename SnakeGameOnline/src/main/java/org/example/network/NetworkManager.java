@@ -1,89 +1,189 @@
 package org.example.network;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import me.ippolitov.fit.snakes.SnakesProto.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-//управляет сетевым взаимодействием через udp unicast и multicast
+//управляет сетевым взаимодействием через udp unicast и multicast.
+//оба канала неблокирующие и зарегистрированы в одном селекторе, приём ведёт отдельный поток ввода-вывода
 public class NetworkManager {
     private static final Logger logger = LoggerFactory.getLogger(NetworkManager.class);
     
     private static final String MULTICAST_ADDRESS = "239.192.0.4"; //адрес multicast группы
     private static final int MULTICAST_PORT = 9192; //порт multicast группы
+    private static final int MAX_DATAGRAM_SIZE = 65536; //больше в udp датаграмму не помещается
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20; //буфер сокета на приём, чтобы пачка сообщений дождалась потока ввода-вывода
+    private static final int MAX_RETRIES = 30; //после стольких повторов сообщение выбрасывается, к этому времени узел уже считается отвалившимся
+    private static final int WHEEL_SLOTS = 64; //ячеек в колесе повторной отправки
+    private static final long WHEEL_TICK_MS = 10; //сколько времени покрывает одна ячейка
     
-    private final DatagramSocket unicastSocket; //сокет для unicast сообщений
-    private final MulticastSocket multicastSocket; //сокет для multicast сообщений
+    private final DatagramChannel unicastChannel; //канал для unicast сообщений
+    private final int unicastPort; //локальный порт unicast канала
+    private final DatagramChannel multicastChannel; //канал для multicast сообщений
     private final InetAddress multicastGroup; //адрес multicast группы
+    private final InetSocketAddress multicastTarget; //куда отправлять multicast
+    private final List<MembershipKey> memberships = new ArrayList<>(); //членство в группе на каждом интерфейсе
+    private final Selector selector; //ждёт датаграмм на обоих каналах
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE); //сериализованное сообщение, общий для всех отправок
+    private Thread ioThread; //поток приёма сообщений
     
     private final AtomicLong msgSeq = new AtomicLong(0); //счётчик порядковых номеров сообщений
-    private final ConcurrentHashMap<Long, PendingMessage> pendingAcks = new ConcurrentHashMap<>(); //ожидающие подтверждения сообщения
-    private final ConcurrentHashMap<String, Long> lastMessageTime = new ConcurrentHashMap<>(); //время последнего сообщения от узлов
+    
+    //неподтверждённые сообщения, все поля ниже меняются только под блокировкой this
+    private final Map<Long, List<PendingMessage>> pendingBySeq = new HashMap<>(); //по порядковому номеру, по записи на адресата
+    private final Map<InetSocketAddress, Set<PendingMessage>> pendingByPeer = new HashMap<>(); //по адресату, чтобы убрать узел без обхода всех
+    private final Map<InetSocketAddress, PendingMessage> pendingStateByPeer = new HashMap<>(); //единственное неподтверждённое состояние адресата
+    private final List<List<PendingMessage>> wheel = new ArrayList<>(); //ячейка по времени следующей отправки
+    private final List<PendingMessage> due = new ArrayList<>(); //сообщения из пройденных ячеек колеса, переиспользуется
+    private long wheelTick = System.currentTimeMillis() / WHEEL_TICK_MS; //последняя обработанная ячейка
+    private long retransmitInterval = 100; //интервал повторной отправки, задаётся при вызове retransmitPending
+    private final ConcurrentHashMap<InetSocketAddress, Long> lastMessageTime = new ConcurrentHashMap<>(); //время последнего сообщения от узлов
     
     private volatile boolean running = true;
     
-    //хранит информацию о сообщении ожидающем подтверждения
-    public static class PendingMessage {
-        public GameMessage message; //само сообщение
-        public InetAddress address; //адрес получателя
-        public int port; //порт получателя
-        public long sentTime; //время последней отправки
-        public int retries; //количество попыток повторной отправки
+    //сообщение ожидающее подтверждения от одного адресата
+    private static class PendingMessage {
+        final long seq; //порядковый номер сообщения
+        final ByteBuffer data; //сериализованное сообщение, общее для всех адресатов
+        final boolean state; //StateMsg или StateDeltaMsg, вытесняется более новым состоянием
+        final boolean soleTarget; //сообщение отправлялось только этому адресату
+        InetSocketAddress target; //адресат
+        long deadline; //когда отправить повторно
+        int retries; //количество попыток повторной отправки
+        boolean done; //подтверждено или снято, из колеса убирается при обходе его ячейки
         
-        //создаёт запись о неподтверждённом сообщении
-        public PendingMessage(GameMessage message, InetAddress address, int port) {
-            this.message = message;
-            this.address = address;
-            this.port = port;
-            this.sentTime = System.currentTimeMillis();
-            this.retries = 0;
+        PendingMessage(long seq, ByteBuffer data, boolean state, boolean soleTarget, InetSocketAddress target, long deadline) {
+            this.seq = seq;
+            this.data = data;
+            this.state = state;
+            this.soleTarget = soleTarget;
+            this.target = target;
+            this.deadline = deadline;
         }
     }
     
-    //инициализирует сетевые сокеты и присоединяется к multicast группе
+    //инициализирует сетевые каналы и присоединяется к multicast группе
     public NetworkManager() throws IOException {
-        unicastSocket = new DatagramSocket();
-        
-        multicastSocket = new MulticastSocket(null);
-        multicastSocket.setReuseAddress(true);
-        multicastSocket.bind(new InetSocketAddress(MULTICAST_PORT));
+        unicastChannel = DatagramChannel.open();
+        unicastChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        unicastChannel.bind(null);
+        unicastPort = ((InetSocketAddress) unicastChannel.getLocalAddress()).getPort();
         
         multicastGroup = InetAddress.getByName(MULTICAST_ADDRESS);
+        multicastTarget = new InetSocketAddress(multicastGroup, MULTICAST_PORT);
+        
+        multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        multicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        multicastChannel.bind(new InetSocketAddress(MULTICAST_PORT));
         
         //включаем loopback чтобы видеть свои же multicast
-        multicastSocket.setLoopbackMode(false);
+        multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
         
         //присоединяемся к группе на всех интерфейсах включая loopback
         var interfaces = NetworkInterface.getNetworkInterfaces();
-        boolean joinedAny = false;
         while (interfaces.hasMoreElements()) {
             NetworkInterface ni = interfaces.nextElement();
             if (ni.isUp() && ni.supportsMulticast()) {
                 try {
-                    multicastSocket.joinGroup(new InetSocketAddress(multicastGroup, MULTICAST_PORT), ni);
+                    memberships.add(multicastChannel.join(multicastGroup, ni));
                     logger.info("Joined multicast group on interface: {}", ni.getName());
-                    joinedAny = true;
                 } catch (Exception e) {
                     logger.debug("Failed to join multicast on {}: {}", ni.getName(), e.getMessage());
                 }
             }
         }
         
-        if (!joinedAny) {
+        if (memberships.isEmpty()) {
             throw new IOException("Could not join multicast group on any interface");
         }
         
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        
+        selector = Selector.open();
+        unicastChannel.configureBlocking(false);
+        unicastChannel.register(selector, SelectionKey.OP_READ, new Receiver(true));
+        multicastChannel.configureBlocking(false);
+        multicastChannel.register(selector, SelectionKey.OP_READ, new Receiver(false));
+        
         logger.info("NetworkManager started: unicast port={}, multicast={}:{}",
-                unicastSocket.getLocalPort(), MULTICAST_ADDRESS, MULTICAST_PORT);
+                unicastPort, MULTICAST_ADDRESS, MULTICAST_PORT);
+    }
+    
+    //запускает поток ввода-вывода: он спит в селекторе пока не придут датаграммы, вычитывает все готовые
+    //и сразу передаёт каждое сообщение обработчику, поэтому задержка и число сообщений не ограничены опросом по таймеру
+    public void start(Consumer<ReceivedMessage> handler) {
+        ioThread = new Thread(() -> runIoLoop(handler), "network-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+    
+    private void runIoLoop(Consumer<ReceivedMessage> handler) {
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    drain((DatagramChannel) key.channel(), (Receiver) key.attachment(), handler);
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Network I/O error", e);
+                }
+            }
+        }
+        logger.debug("Network I/O thread stopped");
+    }
+    
+    //читает из канала датаграммы пока они есть. сообщение разбирается прямо из буфера канала,
+    //а держатель переиспользуется, поэтому на датаграмму создаётся только само сообщение
+    private void drain(DatagramChannel channel, Receiver receiver, Consumer<ReceivedMessage> handler) throws IOException {
+        ByteBuffer buffer = receiver.buffer;
+        while (true) {
+            buffer.clear();
+            InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+            if (sender == null) {
+                return;
+            }
+            buffer.flip();
+            
+            GameMessage message;
+            try {
+                message = GameMessage.parseFrom(CodedInputStream.newInstance(buffer));
+            } catch (InvalidProtocolBufferException e) {
+                logger.debug("Dropped malformed datagram from {}: {}", sender, e.getMessage());
+                continue;
+            }
+            
+            if (receiver.unicast) {
+                updateLastMessageTime(sender);
+            }
+            try {
+                handler.accept(receiver.received.set(message, sender.getAddress(), sender.getPort()));
+            } catch (RuntimeException e) {
+                logger.error("Error handling message", e);
+            }
+        }
     }
     
     //возвращает порт unicast сокета
     public int getUnicastPort() {
-        return unicastSocket.getLocalPort();
+        return unicastPort;
     }
     
     //генерирует следующий порядковый номер сообщения
@@ -93,113 +193,261 @@ public class NetworkManager {
     
     //отправляет unicast сообщение конкретному адресату и отслеживает подтверждение
     public void sendUnicast(GameMessage message, InetAddress address, int port) throws IOException {
-        byte[] data = message.toByteArray();
-        DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
-        unicastSocket.send(packet);
+        sendUnicast(message, new InetSocketAddress(address, port));
+    }
+    
+    public void sendUnicast(GameMessage message, InetSocketAddress address) throws IOException {
+        sendToAll(message, Collections.singletonList(address));
+    }
+    
+    //сериализует сообщение один раз в общий direct буфер и отправляет одни и те же байты всем адресатам.
+    //адресаты разные и канал не подключён, поэтому на каждого своя send, но без повторной сериализации и копирования
+    public void sendToAll(GameMessage message, List<InetSocketAddress> targets) throws IOException {
+        boolean needsAck = !isAckOrAnnouncement(message);
+        ByteBuffer data = null;
+        synchronized (sendBuffer) {
+            serialize(message);
+            //недоступный адресат не должен мешать остальным: ошибка равносильна потере датаграммы,
+            //и сообщение всё равно ставится в ожидание подтверждения, чтобы уйти повторно
+            for (InetSocketAddress target : targets) {
+                try {
+                    sendSerialized(unicastChannel, target);
+                } catch (IOException e) {
+                    logger.warn("Failed to send message {} to {}: {}", message.getMsgSeq(), target, e.getMessage());
+                }
+            }
+            //копия байтов для повторной отправки, чтобы не сериализовать сообщение заново
+            if (needsAck) {
+                data = ByteBuffer.allocate(sendBuffer.limit());
+                sendBuffer.rewind();
+                data.put(sendBuffer).flip();
+            }
+        }
         
         //добавляет в очередь ожидания подтверждения если это не ack или announcement
-        if (!isAckOrAnnouncement(message)) {
-            pendingAcks.put(message.getMsgSeq(), new PendingMessage(message, address, port));
+        if (needsAck) {
+            track(message.getMsgSeq(), data, message.hasState() || message.hasStateDelta(), targets);
+        }
+        for (InetSocketAddress target : targets) {
+            updateLastMessageTime(target);
         }
-        
-        updateLastMessageTime(address.getHostAddress() + ":" + port);
     }
     
     //отправляет multicast сообщение всей группе
     public void sendMulticast(GameMessage message) throws IOException {
-        byte[] data = message.toByteArray();
-        DatagramPacket packet = new DatagramPacket(data, data.length, multicastGroup, MULTICAST_PORT);
-        multicastSocket.send(packet);
-        logger.debug("Sent multicast to {}:{}, {} bytes", MULTICAST_ADDRESS, MULTICAST_PORT, data.length);
+        synchronized (sendBuffer) {
+            serialize(message);
+            int size = sendBuffer.remaining();
+            sendSerialized(multicastChannel, multicastTarget);
+            logger.debug("Sent multicast to {}:{}, {} bytes", MULTICAST_ADDRESS, MULTICAST_PORT, size);
+        }
     }
     
-    //принимает unicast сообщение с заданным таймаутом
-    public ReceivedMessage receiveUnicast(int timeout) throws IOException {
-        byte[] buffer = new byte[65536];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        
-        unicastSocket.setSoTimeout(timeout);
-        try {
-            unicastSocket.receive(packet);
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
-            GameMessage message = GameMessage.parseFrom(data);
-            
-            updateLastMessageTime(packet.getAddress().getHostAddress() + ":" + packet.getPort());
-            
-            return new ReceivedMessage(message, packet.getAddress(), packet.getPort());
-        } catch (SocketTimeoutException e) {
-            return null;
+    //записывает сообщение в sendBuffer, вызывается под его блокировкой
+    private void serialize(GameMessage message) throws IOException {
+        sendBuffer.clear();
+        CodedOutputStream out = CodedOutputStream.newInstance(sendBuffer);
+        message.writeTo(out);
+        out.flush();
+        sendBuffer.flip();
+    }
+    
+    //отправляет содержимое sendBuffer. неблокирующий канал при заполненном буфере сокета
+    //не принимает датаграмму, это равносильно потере в сети и покрывается повторной отправкой
+    private void sendSerialized(DatagramChannel channel, InetSocketAddress target) throws IOException {
+        sendBuffer.rewind();
+        if (channel.send(sendBuffer, target) == 0) {
+            logger.debug("Socket buffer full, datagram to {} dropped", target);
         }
     }
     
-    //принимает multicast сообщение с заданным таймаутом
-    public ReceivedMessage receiveMulticast(int timeout) throws IOException {
-        byte[] buffer = new byte[65536];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        
-        multicastSocket.setSoTimeout(timeout);
-        try {
-            multicastSocket.receive(packet);
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
-            GameMessage message = GameMessage.parseFrom(data);
-            return new ReceivedMessage(message, packet.getAddress(), packet.getPort());
-        } catch (SocketTimeoutException e) {
-            return null;
+    //ставит сообщение в ожидание подтверждения от каждого адресата.
+    //старое состояние после нового адресату уже не нужно, поэтому новое снимает его с ожидания
+    //и у каждого адресата в пути остаётся только последнее состояние. остальные сообщения доставляются все
+    private synchronized void track(long seq, ByteBuffer data, boolean state, List<InetSocketAddress> targets) {
+        long deadline = System.currentTimeMillis() + retransmitInterval;
+        List<PendingMessage> group = pendingBySeq.computeIfAbsent(seq, k -> new ArrayList<>(targets.size()));
+        for (InetSocketAddress target : targets) {
+            PendingMessage pm = new PendingMessage(seq, data, state, targets.size() == 1, target, deadline);
+            if (state) {
+                PendingMessage superseded = pendingStateByPeer.put(target, pm);
+                if (superseded != null) {
+                    complete(superseded);
+                }
+            }
+            group.add(pm);
+            pendingByPeer.computeIfAbsent(target, k -> new HashSet<>()).add(pm);
+            schedule(pm);
         }
     }
     
-    //обрабатывает подтверждение получения сообщения
-    public void handleAck(long msgSeq) {
-        pendingAcks.remove(msgSeq);
+    //обрабатывает подтверждение получения сообщения от узла
+    public synchronized void handleAck(long msgSeq, InetAddress address, int port) {
+        List<PendingMessage> group = pendingBySeq.get(msgSeq);
+        if (group == null) return;
+        
+        InetSocketAddress from = new InetSocketAddress(address, port);
+        PendingMessage acked = null;
+        for (PendingMessage pm : group) {
+            if (pm.target.equals(from)) {
+                acked = pm;
+                break;
+            }
+        }
+        //у единственного адресата ответ мог прийти с другого адреса того же узла
+        if (acked == null && group.size() == 1 && group.get(0).soleTarget) {
+            acked = group.get(0);
+        }
+        if (acked != null) {
+            complete(acked);
+        }
     }
     
-    //повторно отправляет неподтверждённые сообщения через заданный интервал
-    public void retransmitPending(long retransmitInterval) throws IOException {
+    //повторно отправляет сообщения, у которых подошло время. обходит только ячейки колеса
+    //с прошлого вызова, поэтому работа зависит от числа сообщений к отправке, а не от всей очереди
+    public synchronized void retransmitPending(long retransmitInterval) {
+        this.retransmitInterval = retransmitInterval;
         long now = System.currentTimeMillis();
+        long tick = now / WHEEL_TICK_MS;
+        //если прошло больше оборота, каждую ячейку достаточно обойти один раз
+        long last = Math.min(tick, wheelTick + WHEEL_SLOTS);
+        for (long t = wheelTick + 1; t <= last; t++) {
+            collectDue(wheel.get((int) (t % WHEEL_SLOTS)), tick);
+        }
+        wheelTick = tick;
         
-        for (PendingMessage pm : pendingAcks.values()) {
-            if (now - pm.sentTime > retransmitInterval) {
-                byte[] data = pm.message.toByteArray();
-                DatagramPacket packet = new DatagramPacket(data, data.length, pm.address, pm.port);
-                unicastSocket.send(packet);
-                pm.sentTime = now;
-                pm.retries++;
+        for (PendingMessage pm : due) {
+            //срок внутри текущей ячейки, но ещё не наступил: ячейка пройдена, поэтому переносится в следующую
+            if (pm.deadline > now) {
+                schedule(pm);
+                continue;
+            }
+            if (pm.retries >= MAX_RETRIES) {
+                logger.debug("Giving up on message {} to {} after {} retries", pm.seq, pm.target, pm.retries);
+                complete(pm);
+                continue;
+            }
+            //неудачная отправка считается попыткой, иначе недоступный адресат никогда не упрётся в MAX_RETRIES
+            pm.data.rewind();
+            try {
+                unicastChannel.send(pm.data, pm.target);
+            } catch (IOException e) {
+                logger.debug("Failed to retransmit message {} to {}: {}", pm.seq, pm.target, e.getMessage());
             }
+            pm.retries++;
+            pm.deadline = now + retransmitInterval;
+            schedule(pm);
+        }
+        due.clear();
+    }
+    
+    //забирает из пройденной ячейки сообщения со сроком не позже tick и выбрасывает снятые
+    private void collectDue(List<PendingMessage> slot, long tick) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            PendingMessage pm = slot.get(i);
+            if (pm.done) continue;
+            if (pm.deadline / WHEEL_TICK_MS > tick) {
+                //срок на следующем обороте колеса
+                slot.set(kept++, pm);
+            } else {
+                due.add(pm);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+    
+    //кладёт сообщение в ячейку его срока, но не раньше следующей необработанной
+    private void schedule(PendingMessage pm) {
+        long tick = Math.max(pm.deadline / WHEEL_TICK_MS, wheelTick + 1);
+        wheel.get((int) (tick % WHEEL_SLOTS)).add(pm);
+    }
+    
+    //снимает сообщение с ожидания, из колеса оно уйдёт при обходе ячейки
+    private void complete(PendingMessage pm) {
+        pm.done = true;
+        List<PendingMessage> group = pendingBySeq.get(pm.seq);
+        if (group != null && group.remove(pm) && group.isEmpty()) {
+            pendingBySeq.remove(pm.seq);
+        }
+        Set<PendingMessage> peer = pendingByPeer.get(pm.target);
+        if (peer != null && peer.remove(pm) && peer.isEmpty()) {
+            pendingByPeer.remove(pm.target);
+        }
+        if (pm.state) {
+            pendingStateByPeer.remove(pm.target, pm);
         }
     }
     
     //обновляет адрес мастера для всех ожидающих сообщений
-    public void updateMasterAddress(InetAddress newAddress, int newPort) {
-        for (PendingMessage pm : pendingAcks.values()) {
-            pm.address = newAddress;
-            pm.port = newPort;
+    public synchronized void updateMasterAddress(InetAddress newAddress, int newPort) {
+        InetSocketAddress master = new InetSocketAddress(newAddress, newPort);
+        Set<PendingMessage> all = new HashSet<>();
+        for (Set<PendingMessage> peer : pendingByPeer.values()) {
+            for (PendingMessage pm : peer) {
+                pm.target = master;
+                all.add(pm);
+            }
+        }
+        pendingByPeer.clear();
+        if (!all.isEmpty()) {
+            pendingByPeer.put(master, all);
+        }
+        
+        //у нового адресата тоже остаётся только последнее состояние
+        PendingMessage latest = null;
+        for (PendingMessage pm : pendingStateByPeer.values()) {
+            if (latest == null || pm.seq > latest.seq) {
+                latest = pm;
+            }
+        }
+        pendingStateByPeer.clear();
+        if (latest != null) {
+            pendingStateByPeer.put(master, latest);
+            for (PendingMessage pm : new ArrayList<>(all)) {
+                if (pm.state && pm != latest) {
+                    complete(pm);
+                }
+            }
         }
     }
     
     //обновляет время последнего сообщения от узла
-    private void updateLastMessageTime(String key) {
+    private void updateLastMessageTime(InetSocketAddress key) {
         lastMessageTime.put(key, System.currentTimeMillis());
     }
     
     //возвращает время в миллисекундах с последнего сообщения от узла
     public long getTimeSinceLastMessage(String address, int port) {
-        String key = address + ":" + port;
-        Long lastTime = lastMessageTime.get(key);
+        Long lastTime = lastMessageTime.get(new InetSocketAddress(address, port));
         if (lastTime == null) return Long.MAX_VALUE;
         return System.currentTimeMillis() - lastTime;
     }
     
-    //удаляет информацию об узле из отслеживания
+    //удаляет информацию об узле из отслеживания вместе с его неподтверждёнными сообщениями
     public void removeNodeTracking(String address, int port) {
-        String key = address + ":" + port;
-        lastMessageTime.remove(key);
+        InetSocketAddress node = new InetSocketAddress(address, port);
+        lastMessageTime.remove(node);
+        synchronized (this) {
+            Set<PendingMessage> peer = pendingByPeer.get(node);
+            if (peer != null) {
+                for (PendingMessage pm : new ArrayList<>(peer)) {
+                    complete(pm);
+                }
+            }
+        }
     }
     
     //очищает все ожидающие подтверждения сообщения и таймеры
     public void clearPendingMessages() {
-        pendingAcks.clear();
+        synchronized (this) {
+            pendingBySeq.clear();
+            pendingByPeer.clear();
+            pendingStateByPeer.clear();
+            for (List<PendingMessage> slot : wheel) {
+                slot.clear();
+            }
+        }
         lastMessageTime.clear();
         logger.debug("Cleared all pending messages and message timings");
     }
@@ -209,37 +457,54 @@ public class NetworkManager {
         return message.hasAck() || message.hasAnnouncement() || message.hasDiscover();
     }
     
-    //закрывает сокеты и покидает multicast группу
+    //останавливает поток ввода-вывода, покидает multicast группу и закрывает каналы
     public void close() {
         running = false;
+        for (MembershipKey membership : memberships) {
+            membership.drop();
+        }
         try {
-            var interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface ni = interfaces.nextElement();
-                if (ni.isUp() && ni.supportsMulticast()) {
-                    try {
-                        multicastSocket.leaveGroup(new InetSocketAddress(multicastGroup, MULTICAST_PORT), ni);
-                    } catch (Exception e) {
-                    }
-                }
-            }
-        } catch (Exception e) {
+            selector.close();
+        } catch (IOException e) {
+        }
+        try {
+            multicastChannel.close();
+        } catch (IOException e) {
+        }
+        try {
+            unicastChannel.close();
+        } catch (IOException e) {
         }
-        multicastSocket.close();
-        unicastSocket.close();
         logger.info("NetworkManager closed");
     }
     
-    //хранит полученное сообщение с адресом отправителя
+    //буфер приёма и держатель сообщения одного канала, живут всё время работы и используются только потоком ввода-вывода
+    private static class Receiver {
+        final boolean unicast; //обновлять ли время последнего сообщения от отправителя
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE); //принятая датаграмма
+        final ReceivedMessage received = new ReceivedMessage(null, null, 0); //переиспользуемый держатель
+        
+        Receiver(boolean unicast) {
+            this.unicast = unicast;
+        }
+    }
+    
+    //хранит полученное сообщение с адресом отправителя.
+    //поток ввода-вывода переиспользует один объект на канал, поэтому он действителен только во время вызова обработчика
     public static class ReceivedMessage {
-        public final GameMessage message; //полученное сообщение
-        public final InetAddress address; //адрес отправителя
-        public final int port; //порт отправителя
+        public GameMessage message; //полученное сообщение
+        public InetAddress address; //адрес отправителя
+        public int port; //порт отправителя
         
         public ReceivedMessage(GameMessage message, InetAddress address, int port) {
+            set(message, address, port);
+        }
+        
+        ReceivedMessage set(GameMessage message, InetAddress address, int port) {
             this.message = message;
             this.address = address;
             this.port = port;
+            return this;
         }
     }
 }
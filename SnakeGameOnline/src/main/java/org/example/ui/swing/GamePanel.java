@@ -220,7 +220,7 @@ public class GamePanel extends JPanel {
         int playerIndex = 0;
         for (GameField.Snake snake : field.getSnakes().values()) {
             Color color = PLAYER_COLORS[playerIndex % PLAYER_COLORS.length];
-            List<Coord> cells = snake.getAllCells(width, height);
+            List<Coord> cells = snake.getAllCells();
             
             for (int i = 0; i < cells.size(); i++) {
                 Coord cell = cells.get(i);
@@ -0,0 +1,105 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+//сравнивает старую отправку через byte[] и DataOutputStream с FileChannel.transferTo
+//args: [размер файла в MB] [число прогонов]
+public class SendBenchmark {
+    private interface Sender{
+        void send(File file, SocketChannel socketChannel) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path file = Files.createTempFile("send-bench", ".bin");
+        try(ServerSocketChannel sink = ServerSocketChannel.open()){
+            generate(file, sizeMb * 1024 * 1024);
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            startSink(sink);
+
+            System.out.printf("файл %d MB, прогонов %d%n", sizeMb, runs);
+            for (int i = 0; i < runs; i++){
+                measure("stream", file.toFile(), sink, SendBenchmark::sendStream);
+                measure("transferTo", file.toFile(), sink, SendBenchmark::sendTransferTo);
+            }
+        }finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void sendStream(File file, SocketChannel socketChannel) throws IOException{
+        DataOutputStream dataOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+        try(FileInputStream fileIn = new FileInputStream(file)){
+            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+            int byteRead;
+            while((byteRead = fileIn.read(buffer)) != -1){
+                dataOut.write(buffer, 0, byteRead);
+            }
+            dataOut.flush();
+        }
+    }
+
+    private static void sendTransferTo(File file, SocketChannel socketChannel) throws IOException{
+        try(FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            Client.transferPayload(fileChannel, 0, fileChannel.size(), socketChannel);
+        }
+    }
+
+    private static void measure(String name, File file, ServerSocketChannel sink, Sender sender) throws IOException{
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try(SocketChannel socketChannel = SocketChannel.open(sink.getLocalAddress())){
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+
+            sender.send(file, socketChannel);
+
+            long elapsed = System.nanoTime() - start;
+            long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+            double mb = file.length() / (1024.0 * 1024.0);
+            System.out.printf("%-10s %8.1f MB/s, cpu отправителя %6.1f мс/GB%n", name, mb / (elapsed / 1e9), cpu / 1e6 / (mb / 1024));
+        }
+    }
+
+    //приемник просто вычитывает все соединения до конца
+    private static void startSink(ServerSocketChannel sink){
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while(sink.isOpen()){
+                try(SocketChannel socketChannel = sink.accept()){
+                    while(socketChannel.read(buffer.clear()) != -1){
+                    }
+                }catch (IOException e){
+                    return;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void generate(Path file, long size) throws IOException{
+        try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)){
+            byte[] block = new byte[1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(block);
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            for (long written = 0; written < size; written += block.length){
+                buffer.clear().limit((int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()){
+                    fileChannel.write(buffer);
+                }
+            }
+        }
+    }
+}
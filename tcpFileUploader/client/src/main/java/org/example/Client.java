@@ -2,9 +2,27 @@ package org.example;
 
 import javax.swing.*;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 
 public class Client {
     private String filePath;
@@ -24,28 +42,77 @@ public class Client {
             return false;
         }
 
+        //при обрыве связи сервер сохраняет уже принятую часть, поэтому повторная попытка продолжает с нее
+        for (int attempt = 1; ; attempt++){
+            try{
+                return uploadResumable(file);
+            }catch (SocketTimeoutException e){
+                System.out.println("таймаут соединения с сервером");
+            }catch (IOException e){
+                System.out.println("ошибка связи с сеовером: " + e.getMessage());
+            }
+
+            if (attempt >= Protocol.MAX_UPLOAD_ATTEMPTS){
+                return false;
+            }
+            System.out.printf("повторная попытка %d из %d через %d сек%n", attempt + 1, Protocol.MAX_UPLOAD_ATTEMPTS, Protocol.RETRY_DELAY_MS / 1000);
+            try{
+                Thread.sleep(Protocol.RETRY_DELAY_MS);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private boolean uploadResumable(File file) throws IOException{
         long fileSize = file.length();
         String filename = file.getName();
 
-        try(Socket socket = new Socket(serverHost, serverPort);
-            DataInputStream dataIn = new DataInputStream(socket.getInputStream());
-            DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
-            FileInputStream fileIn = new FileInputStream(file)){
+        try(SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
 
-            socket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
 
             int serverResponse = dataIn.readInt();
             if (serverResponse != Protocol.READY_FOR_METADATA){
-                System.out.println("сервер не готов к приему метаданных");
+                handleServerError(serverResponse);
                 return false;
             }
 
             byte[] filenameByte = filename.getBytes(Protocol.STRING_ENCODING);
+            dataOut.writeInt(Protocol.OP_RESUMABLE_UPLOAD);
             dataOut.writeInt(filenameByte.length);
             dataOut.write(filenameByte);
             dataOut.writeLong(fileSize);
             dataOut.flush();
 
+            serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.RESUME_OFFSET){
+                handleServerError(serverResponse);
+                return false;
+            }
+
+            //сервер сообщает сколько байт у него уже есть, продолжаем только если этот префикс совпадает с нашим
+            long committedOffset = dataIn.readLong();
+            long prefixChecksum = dataIn.readLong();
+            int serverCodecs = dataIn.readInt();
+            long startOffset = 0;
+            CRC32C checksum = new CRC32C();
+            if (committedOffset > 0 && committedOffset <= fileSize && updateChecksum(checksum, fileChannel, 0, committedOffset) == prefixChecksum){
+                startOffset = committedOffset;
+            }else{
+                checksum.reset();
+            }
+            int codec = Protocol.CODEC_NONE;
+            if ((serverCodecs & (1 << Protocol.CODEC_DEFLATE)) != 0 && isCompressible(fileChannel, startOffset, fileSize - startOffset)){
+                codec = Protocol.CODEC_DEFLATE;
+            }
+            dataOut.writeLong(startOffset);
+            dataOut.writeInt(codec);
+            dataOut.flush();
 
             serverResponse = dataIn.readInt();
             if (serverResponse != Protocol.READY_FOR_FILE){
@@ -53,21 +120,333 @@ public class Client {
                 return false;
             }
 
-            System.out.printf("отправка файла '%s' размером %d байт на %s:%d%n", filename, fileSize, serverHost, serverPort);
+            if (startOffset > 0){
+                System.out.printf("докачка файла '%s': на сервере уже есть %d из %d байт%n", filename, startOffset, fileSize);
+            }
+            System.out.printf("отправка файла '%s' размером %d байт на %s:%d%s%n", filename, fileSize - startOffset, serverHost, serverPort,
+                    codec == Protocol.CODEC_DEFLATE ? " со сжатием deflate" : "");
+
+            long finalChecksum;
+            if (codec == Protocol.CODEC_DEFLATE){
+                finalChecksum = sendCompressed(fileChannel, startOffset, fileSize - startOffset, checksum, dataOut);
+            }else{
+                FutureTask<Long> checksumTask = startChecksum(checksum, fileChannel, startOffset, fileSize - startOffset);
+                transferPayload(fileChannel, startOffset, fileSize - startOffset, socketChannel);
+                finalChecksum = awaitChecksum(checksumTask);
+            }
+            dataOut.writeInt(Protocol.CHECKSUM);
+            dataOut.writeLong(finalChecksum);
+            dataOut.flush();
+
+            serverResponse = dataIn.readInt();
+            if(serverResponse == Protocol.SUCCESS){
+                System.out.println("файл успешно отправлен на сервер");
+                return true;
+            }else{
+                handleServerError(serverResponse);
+                return false;
+            }
+        }
+    }
+
+    //сжимает пробу из начала отправляемой части: если она почти не уменьшилась (архивы, видео),
+    //сжатие только потратит процессор, и файл уходит через transferTo как есть
+    private static boolean isCompressible(FileChannel fileChannel, long position, long length) throws IOException{
+        int probeSize = (int) Math.min(Protocol.COMPRESSION_PROBE_SIZE, length);
+        if (probeSize == 0){
+            return false;
+        }
+        byte[] probe = new byte[probeSize];
+        ByteBuffer buffer = ByteBuffer.wrap(probe);
+        while (buffer.hasRemaining()){
+            if (fileChannel.read(buffer, position + buffer.position()) == -1){
+                return false;
+            }
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try{
+            deflater.setInput(probe);
+            deflater.finish();
+            byte[] output = new byte[probeSize];
+            long compressedSize = 0;
+            while (!deflater.finished()){
+                compressedSize += deflater.deflate(output);
+                if (compressedSize >= probeSize){
+                    return false;
+                }
+            }
+            return compressedSize <= probeSize * (1 - Protocol.COMPRESSION_MIN_SAVING);
+        }finally {
+            deflater.end();
+        }
+    }
+
+    //сжатие идет в отдельном потоке и опережает отправку на несколько блоков, поэтому сеть и процессор
+    //работают одновременно. возвращает CRC32C исходных данных
+    private static long sendCompressed(FileChannel fileChannel, long position, long length, Checksum checksum, DataOutputStream dataOut) throws IOException{
+        BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(Protocol.COMPRESSION_QUEUE_SIZE);
+        FutureTask<Long> compressor = new FutureTask<>(() -> compressFrames(fileChannel, position, length, checksum, frames));
+        Thread thread = new Thread(compressor, "compressor");
+        thread.setDaemon(true);
+        thread.start();
+
+        long compressedSent = 0;
+        try{
+            byte[] frame;
+            while ((frame = frames.take()).length > 0){
+                dataOut.write(frame);
+                compressedSent += frame.length;
+            }
+            dataOut.flush();
+            long value = awaitChecksum(compressor);
+            if (length > 0){
+                System.out.printf("сжатие: отправлено %d байт вместо %d (%.1f%%)%n", compressedSent, length, compressedSent * 100.0 / length);
+            }
+            return value;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("отправка прервана");
+        }finally {
+            compressor.cancel(true);
+        }
+    }
+
+    //блок: длина сжатых данных, длина исходных, сами данные. SYNC_FLUSH в конце блока позволяет серверу
+    //распаковать его целиком, не дожидаясь следующего, при этом словарь deflate общий на весь поток
+    private static long compressFrames(FileChannel fileChannel, long position, long length, Checksum checksum, BlockingQueue<byte[]> frames) throws IOException, InterruptedException{
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] block = new byte[Protocol.COMPRESSION_BLOCK_SIZE];
+        int header = 2 * Integer.BYTES;
+        try{
+            long totalRead = 0;
+            while (totalRead < length){
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, length - totalRead));
+                while (buffer.hasRemaining()){
+                    if (fileChannel.read(buffer, position + totalRead + buffer.position()) == -1){
+                        throw new IOException("файл изменился во время отправки");
+                    }
+                }
+                int blockLength = buffer.position();
+                checksum.update(block, 0, blockLength);
+
+                deflater.setInput(block, 0, blockLength);
+                byte[] frame = new byte[Protocol.MAX_COMPRESSED_BLOCK_SIZE + header];
+                int compressedLength = deflater.deflate(frame, header, frame.length - header, Deflater.SYNC_FLUSH);
+                if (header + compressedLength == frame.length){
+                    throw new IOException("блок не сжимается в допустимый размер");
+                }
+
+                ByteBuffer.wrap(frame).putInt(compressedLength).putInt(blockLength);
+                frames.put(Arrays.copyOf(frame, header + compressedLength));
+                totalRead += blockLength;
+            }
+            frames.put(new byte[0]);
+            return checksum.getValue();
+        }catch (IOException | RuntimeException e){
+            //отправитель ждет следующий блок, поэтому освобождаем очередь и сообщаем о конце
+            frames.clear();
+            frames.offer(new byte[0]);
+            throw e;
+        }finally {
+            deflater.end();
+        }
+    }
+
+    //отправляет все файлы каталога одной сессией: записи идут подряд без ожидания ответа на каждую,
+    //а подтверждения сервера читает отдельный поток
+    public boolean sendDirectory(){
+        Path root = Paths.get(filePath);
+        if (!Files.isDirectory(root)){
+            System.out.println("каталог не найден: " + filePath);
+            return false;
+        }
+
+        List<Path> files;
+        try(Stream<Path> walk = Files.walk(root)){
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }catch (IOException e){
+            System.out.println("не удалось прочитать каталог: " + e.getMessage());
+            return false;
+        }
+
+        try(SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream(), Protocol.SESSION_INLINE_FILE_SIZE))){
+
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+
+            int serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.READY_FOR_METADATA){
+                handleServerError(serverResponse);
+                return false;
+            }
+
+            System.out.printf("отправка каталога '%s' (%d файлов) на %s:%d%n", root, files.size(), serverHost, serverPort);
+            dataOut.writeInt(Protocol.OP_SESSION);
+
+            //чтение с таймаутом переводит канал в неблокирующий режим, и transferTo в это время
+            //отправил бы 0 байт, поэтому поток подтверждений ждет без таймаута, а ожидание ограничивается ниже
+            socketChannel.socket().setSoTimeout(0);
+            List<String> sentPaths = Collections.synchronizedList(new ArrayList<>());
+            FutureTask<Integer> acks = new FutureTask<>(() -> readSessionAcks(dataIn, sentPaths));
+            Thread ackReader = new Thread(acks, "session-acks");
+            ackReader.setDaemon(true);
+            ackReader.start();
+
+            byte[] buffer = new byte[Protocol.SESSION_INLINE_FILE_SIZE];
+            String rootName = root.toAbsolutePath().normalize().getFileName().toString();
+            for (Path file : files){
+                String relativePath = rootName + "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+                byte[] pathBytes = relativePath.getBytes(Protocol.STRING_ENCODING);
+                if (pathBytes.length > Protocol.MAX_FILENAME_LENGTH){
+                    System.out.println("пропущен файл со слишком длинным путем: " + relativePath);
+                    continue;
+                }
 
-            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
-            long totalSent = 0;
+                try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)){
+                    long fileSize = fileChannel.size();
+                    sentPaths.add(relativePath);
+                    dataOut.writeInt(pathBytes.length);
+                    dataOut.write(pathBytes);
+                    dataOut.writeLong(fileSize);
 
-            while(totalSent < fileSize){
-                int byteRead = fileIn.read(buffer);
-                if (byteRead == -1){
-                    break;
+                    long checksum;
+                    if (fileSize <= Protocol.SESSION_INLINE_FILE_SIZE){
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) fileSize);
+                        while (byteBuffer.hasRemaining()){
+                            if (fileChannel.read(byteBuffer, byteBuffer.position()) == -1){
+                                throw new IOException("файл '" + file + "' изменился во время отправки");
+                            }
+                        }
+                        CRC32C crc = new CRC32C();
+                        crc.update(buffer, 0, (int) fileSize);
+                        checksum = crc.getValue();
+                        dataOut.write(buffer, 0, (int) fileSize);
+                    }else{
+                        dataOut.flush();
+                        FutureTask<Long> checksumTask = startChecksum(new CRC32C(), fileChannel, 0, fileSize);
+                        if (transferPayload(fileChannel, 0, fileSize, socketChannel) != fileSize){
+                            throw new IOException("файл '" + file + "' изменился во время отправки");
+                        }
+                        checksum = awaitChecksum(checksumTask);
+                    }
+                    dataOut.writeLong(checksum);
                 }
-                dataOut.write(buffer, 0, byteRead);
-                totalSent += byteRead;
             }
+            dataOut.writeInt(0);
             dataOut.flush();
 
+            int failed = acks.get(Protocol.SOCKET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (failed == 0){
+                System.out.println("все " + sentPaths.size() + " файлов успешно отправлены на сервер");
+                return true;
+            }
+            System.out.println("не удалось сохранить " + failed + " из " + sentPaths.size() + " файлов");
+            return false;
+        }catch (SocketTimeoutException | TimeoutException e){
+            System.out.println("таймаут соединения с сервером");
+            return false;
+        }catch (IOException e){
+            System.out.println("ошибка связи с сеовером: " + e.getMessage());
+            return false;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }catch (ExecutionException e){
+            System.out.println("ошибка связи с сеовером: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    //возвращает число файлов, которые сервер не сохранил
+    private int readSessionAcks(DataInputStream dataIn, List<String> sentPaths) throws IOException{
+        int failed = 0;
+        while (true){
+            int status = dataIn.readInt();
+            int recordIndex = dataIn.readInt();
+            if (status == Protocol.SESSION_COMPLETE){
+                return failed + (sentPaths.size() - recordIndex);
+            }
+            if (status != Protocol.SUCCESS){
+                failed++;
+                System.out.print("файл '" + sentPaths.get(recordIndex) + "': ");
+                handleServerError(status);
+            }
+        }
+    }
+
+    //отправляет только те куски файла, которых у сервера еще нет
+    public boolean sendFileDedup(){
+        File file = new File(filePath);
+        if (!file.exists() || !file.isFile()){
+            System.out.println("файл не найден: " + filePath);
+            return false;
+        }
+
+        long fileSize = file.length();
+        String filename = file.getName();
+
+        try(SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream()));
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+
+            List<ContentChunker.Chunk> chunks = ContentChunker.split(fileChannel);
+            if (chunks.size() > Protocol.DEDUP_MAX_CHUNKS){
+                System.out.println("файл слишком большой для дедупликации");
+                return false;
+            }
+
+            int serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.READY_FOR_METADATA){
+                handleServerError(serverResponse);
+                return false;
+            }
+
+            byte[] filenameByte = filename.getBytes(Protocol.STRING_ENCODING);
+            dataOut.writeInt(Protocol.OP_DEDUP_UPLOAD);
+            dataOut.writeInt(filenameByte.length);
+            dataOut.write(filenameByte);
+            dataOut.writeLong(fileSize);
+            dataOut.writeInt(chunks.size());
+            for (ContentChunker.Chunk chunk : chunks){
+                dataOut.writeInt(chunk.length);
+                dataOut.write(chunk.hash);
+            }
+            dataOut.flush();
+
+            serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.NEED_CHUNKS){
+                handleServerError(serverResponse);
+                return false;
+            }
+
+            int neededCount = dataIn.readInt();
+            if (neededCount < 0 || neededCount > chunks.size()){
+                System.out.println("сервер запросил неверное число кусков: " + neededCount);
+                return false;
+            }
+            int[] needed = new int[neededCount];
+            long neededBytes = 0;
+            for (int i = 0; i < neededCount; i++){
+                needed[i] = dataIn.readInt();
+                if (needed[i] < 0 || needed[i] >= chunks.size()){
+                    System.out.println("сервер запросил несуществующий кусок: " + needed[i]);
+                    return false;
+                }
+                neededBytes += chunks.get(needed[i]).length;
+            }
+
+            System.out.printf("отправка файла '%s' размером %d байт на %s:%d: нужно %d из %d кусков, %d байт%n", filename, fileSize, serverHost, serverPort, neededCount, chunks.size(), neededBytes);
+
+            for (int index : needed){
+                ContentChunker.Chunk chunk = chunks.get(index);
+                transferPayload(fileChannel, chunk.offset, chunk.length, socketChannel);
+            }
+
             serverResponse = dataIn.readInt();
             if(serverResponse == Protocol.SUCCESS){
                 System.out.println("файл успешно отправлен на сервер");
@@ -85,6 +464,257 @@ public class Client {
         }
     }
 
+    public boolean sendFileChunked(int connections){
+        File file = new File(filePath);
+        if (!file.exists() || !file.isFile()){
+            System.out.println("файл не найден: " + filePath);
+            return false;
+        }
+
+        long fileSize = file.length();
+        String filename = file.getName();
+        int chunkCount = (int) Math.max(1, Math.min(Math.min(connections, Protocol.MAX_CHUNKS), fileSize / Protocol.MIN_CHUNK_SIZE));
+        long uploadId = ThreadLocalRandom.current().nextLong();
+
+        System.out.printf("отправка файла '%s' размером %d байт на %s:%d в %d соединений%n", filename, fileSize, serverHost, serverPort, chunkCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(chunkCount);
+        try{
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++){
+                int chunkIndex = i;
+                results.add(executor.submit(() -> sendChunk(file, filename, fileSize, uploadId, chunkCount, chunkIndex)));
+            }
+
+            boolean allReceived = true;
+            boolean completed = false;
+            for (Future<Integer> result : results){
+                int serverResponse = result.get();
+                if (serverResponse == Protocol.SUCCESS){
+                    completed = true;
+                }else if (serverResponse != Protocol.CHUNK_RECEIVED){
+                    allReceived = false;
+                }
+            }
+
+            if (allReceived && completed){
+                System.out.println("файл успешно отправлен на сервер");
+                return true;
+            }
+            System.out.println("не все части файла были приняты сервером");
+            return false;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }catch (ExecutionException e){
+            System.out.println("ошибка отправки части файла: " + e.getCause().getMessage());
+            return false;
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    //отправляет одну часть файла по отдельному соединению, возвращает ответ сервера
+    private int sendChunk(File file, String filename, long fileSize, long uploadId, int chunkCount, int chunkIndex) throws IOException{
+        long offset = Protocol.chunkStart(fileSize, chunkCount, chunkIndex);
+        long length = Protocol.chunkLength(fileSize, chunkCount, chunkIndex);
+
+        try(SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+
+            int serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.READY_FOR_METADATA){
+                handleServerError(serverResponse);
+                return serverResponse;
+            }
+
+            byte[] filenameByte = filename.getBytes(Protocol.STRING_ENCODING);
+            dataOut.writeInt(Protocol.OP_CHUNK_UPLOAD);
+            dataOut.writeLong(uploadId);
+            dataOut.writeInt(filenameByte.length);
+            dataOut.write(filenameByte);
+            dataOut.writeLong(fileSize);
+            dataOut.writeInt(chunkCount);
+            dataOut.writeInt(chunkIndex);
+            dataOut.flush();
+
+            serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.READY_FOR_FILE){
+                handleServerError(serverResponse);
+                return serverResponse;
+            }
+
+            FutureTask<Long> checksumTask = startChecksum(new CRC32C(), fileChannel, offset, length);
+            transferPayload(fileChannel, offset, length, socketChannel);
+            dataOut.writeInt(Protocol.CHECKSUM);
+            dataOut.writeLong(awaitChecksum(checksumTask));
+            dataOut.flush();
+
+            serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.SUCCESS && serverResponse != Protocol.CHUNK_RECEIVED){
+                handleServerError(serverResponse);
+            }
+            return serverResponse;
+        }
+    }
+
+    //содержимое файла уходит в сокет через sendfile, минуя копирование в память процесса
+    static long transferPayload(FileChannel fileChannel, long position, long length, WritableByteChannel target) throws IOException{
+        long totalSent = 0;
+        while(totalSent < length){
+            long sent = fileChannel.transferTo(position + totalSent, length - totalSent, target);
+            if (sent <= 0){
+                break;
+            }
+            totalSent += sent;
+        }
+        return totalSent;
+    }
+
+    //контрольная сумма считается в отдельном потоке одновременно с отправкой через transferTo,
+    //поэтому к времени передачи она ничего не добавляет
+    private static FutureTask<Long> startChecksum(Checksum checksum, FileChannel fileChannel, long position, long length){
+        FutureTask<Long> checksumTask = new FutureTask<>(() -> updateChecksum(checksum, fileChannel, position, length));
+        Thread thread = new Thread(checksumTask, "checksum");
+        thread.setDaemon(true);
+        thread.start();
+        return checksumTask;
+    }
+
+    private static long awaitChecksum(FutureTask<Long> checksumTask) throws IOException{
+        try{
+            return checksumTask.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("подсчет контрольной суммы прерван");
+        }catch (ExecutionException e){
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    static long updateChecksum(Checksum checksum, FileChannel fileChannel, long position, long length) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.DEFAULT_RECEIVE_BUFFER_SIZE);
+        long totalRead = 0;
+        while(totalRead < length){
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - totalRead));
+            int byteRead = fileChannel.read(buffer, position + totalRead);
+            if (byteRead == -1){
+                break;
+            }
+            checksum.update(buffer.flip());
+            totalRead += byteRead;
+        }
+        return checksum.getValue();
+    }
+
+    //скачивает файл с сервера в filePath: сначала узнает размер, затем качает диапазоны параллельно
+    //по нескольким соединениям и пишет каждый на свое место в заранее выделенном файле
+    public boolean downloadFile(String remoteName, int connections){
+        try{
+            long fileSize = requestRanges(remoteName, new long[0][], null);
+            if (fileSize < 0){
+                return false;
+            }
+
+            int rangeCount = (int) Math.max(1, Math.min(Math.min(connections, Protocol.MAX_CHUNKS), fileSize / Protocol.MIN_CHUNK_SIZE));
+            System.out.printf("скачивание файла '%s' размером %d байт с %s:%d в %d соединений%n", remoteName, fileSize, serverHost, serverPort, rangeCount);
+
+            try(RandomAccessFile file = new RandomAccessFile(filePath, "rw")){
+                file.setLength(fileSize);
+                FileChannel fileChannel = file.getChannel();
+
+                ExecutorService executor = Executors.newFixedThreadPool(rangeCount);
+                try{
+                    List<Future<Long>> results = new ArrayList<>();
+                    for (int i = 0; i < rangeCount; i++){
+                        long[] range = {Protocol.chunkStart(fileSize, rangeCount, i), Protocol.chunkLength(fileSize, rangeCount, i)};
+                        results.add(executor.submit(() -> requestRanges(remoteName, new long[][]{range}, fileChannel)));
+                    }
+                    for (Future<Long> result : results){
+                        if (result.get() != fileSize){
+                            System.out.println("размер файла на сервере изменился во время скачивания");
+                            return false;
+                        }
+                    }
+                }finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            System.out.println("файл успешно скачан в " + filePath);
+            return true;
+        }catch (SocketTimeoutException e){
+            System.out.println("таймаут соединения с сервером");
+            return false;
+        }catch (IOException e){
+            System.out.println("ошибка связи с сеовером: " + e.getMessage());
+            return false;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }catch (ExecutionException e){
+            System.out.println("ошибка скачивания части файла: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    //запрашивает диапазоны {смещение, длина} по одному соединению и пишет их в fileChannel.
+    //возвращает размер файла на сервере или -1 при ошибке сервера
+    private long requestRanges(String remoteName, long[][] ranges, FileChannel fileChannel) throws IOException{
+        try(SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream()))){
+
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+
+            int serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.READY_FOR_METADATA){
+                handleServerError(serverResponse);
+                return -1;
+            }
+
+            byte[] nameBytes = remoteName.getBytes(Protocol.STRING_ENCODING);
+            dataOut.writeInt(Protocol.OP_GET);
+            dataOut.writeInt(nameBytes.length);
+            dataOut.write(nameBytes);
+            dataOut.writeInt(ranges.length);
+            for (long[] range : ranges){
+                dataOut.writeLong(range[0]);
+                dataOut.writeLong(range[1]);
+            }
+            dataOut.flush();
+
+            serverResponse = dataIn.readInt();
+            if (serverResponse != Protocol.FILE_INFO){
+                handleServerError(serverResponse);
+                return -1;
+            }
+            long fileSize = dataIn.readLong();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.DEFAULT_RECEIVE_BUFFER_SIZE);
+            for (int i = 0; i < ranges.length; i++){
+                long position = dataIn.readLong();
+                long length = dataIn.readLong();
+                long received = 0;
+                while (received < length){
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), length - received));
+                    if (socketChannel.read(buffer) == -1){
+                        throw new EOFException("соединение оборвалось посреди диапазона");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()){
+                        received += fileChannel.write(buffer, position + received);
+                    }
+                }
+            }
+            return fileSize;
+        }
+    }
+
     private void handleServerError(int errorCode) {
         switch (errorCode) {
             case Protocol.ERROR_INVALID_FILENAME:
@@ -99,6 +729,24 @@ public class Client {
             case Protocol.ERROR_TRANSFER_FAILED:
                 System.out.println("ошибка: сбой передачи файла");
                 break;
+            case Protocol.ERROR_INVALID_CHUNK:
+                System.out.println("ошибка: сервер отклонил часть файла");
+                break;
+            case Protocol.ERROR_SERVER_BUSY:
+                System.out.println("ошибка: сервер перегружен, попробуйте позже");
+                break;
+            case Protocol.ERROR_UPLOAD_IN_PROGRESS:
+                System.out.println("ошибка: этот файл уже загружается на сервер");
+                break;
+            case Protocol.ERROR_CHECKSUM_MISMATCH:
+                System.out.println("ошибка: контрольная сумма не совпала, данные повреждены при передаче");
+                break;
+            case Protocol.ERROR_FILE_NOT_FOUND:
+                System.out.println("ошибка: файл не найден на сервере");
+                break;
+            case Protocol.ERROR_INVALID_RANGE:
+                System.out.println("ошибка: запрошенный диапазон вне файла");
+                break;
             default:
                 System.out.println("неизвестная ошибка сервера: " + errorCode);
         }
@@ -107,9 +755,14 @@ public class Client {
 
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("exmpl args: <file_path> <server_host> <server_port>");
+        if (args.length > 0 && args[0].equals("get")) {
+            download(args);
+            return;
+        }
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("exmpl args: <file_or_dir_path> <server_host> <server_port> [connections|dedup]");
             System.out.println("test.txt localhost 8080");
+            System.out.println("скачивание: get <remote_name> <local_path> <server_host> <server_port> [connections]");
             return;
         }
 
@@ -124,8 +777,32 @@ public class Client {
             return;
         }
 
+        boolean dedup = args.length == 4 && args[3].equals("dedup");
+        int connections = 1;
+        if (args.length == 4 && !dedup){
+            try{
+                connections = Integer.parseInt(args[3]);
+            }catch (NumberFormatException e){
+                System.out.println("неверное число соединений");
+                return;
+            }
+            if (connections < 1 || connections > Protocol.MAX_CHUNKS){
+                System.out.println("число соединений должно быть в диапазоне 1-" + Protocol.MAX_CHUNKS);
+                return;
+            }
+        }
+
         Client client = new Client(filePath, serverHost, serverPort);
-        boolean success = client.sendFile();
+        boolean success;
+        if (new File(filePath).isDirectory()){
+            success = client.sendDirectory();
+        }else if (dedup){
+            success = client.sendFileDedup();
+        }else if (connections > 1){
+            success = client.sendFileChunked(connections);
+        }else{
+            success = client.sendFile();
+        }
 
         if (success){
             System.exit(0);
@@ -133,4 +810,30 @@ public class Client {
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    private static void download(String[] args) {
+        if (args.length != 5 && args.length != 6) {
+            System.out.println("exmpl args: get <remote_name> <local_path> <server_host> <server_port> [connections]");
+            return;
+        }
+
+        int serverPort;
+        int connections = 1;
+        try{
+            serverPort = Integer.parseInt(args[4]);
+            if (args.length == 6){
+                connections = Integer.parseInt(args[5]);
+            }
+        }catch (NumberFormatException e){
+            System.out.println("неверный формат аргументов");
+            return;
+        }
+        if (connections < 1 || connections > Protocol.MAX_CHUNKS){
+            System.out.println("число соединений должно быть в диапазоне 1-" + Protocol.MAX_CHUNKS);
+            return;
+        }
+
+        Client client = new Client(args[2], args[3], serverPort);
+        System.exit(client.downloadFile(args[1], connections) ? 0 : 1);
+    }
+}
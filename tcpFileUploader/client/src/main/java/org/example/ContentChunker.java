@@ -0,0 +1,77 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+//делит файл на куски по содержимому (gear rolling hash): граница ставится там, где старшие биты хеша
+//последних 64 байт равны нулю. правка в середине файла сдвигает только соседние границы, остальные куски
+//и их SHA-256 остаются прежними, поэтому почти одинаковые файлы делят почти все куски
+public class ContentChunker {
+    //в среднем кусок около 64 KB
+    private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EEDL);
+        for (int i = 0; i < GEAR.length; i++){
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static class Chunk{
+        final long offset;
+        final int length;
+        final byte[] hash;
+
+        Chunk(long offset, int length, byte[] hash){
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    public static List<Chunk> split(FileChannel fileChannel) throws IOException{
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance(Protocol.HASH_ALGORITHM);
+        }catch (NoSuchAlgorithmException e){
+            throw new IOException("алгоритм " + Protocol.HASH_ALGORITHM + " недоступен", e);
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[1024 * 1024];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = 0;
+        long chunkStart = 0;
+        long hash = 0;
+
+        int bytesRead;
+        while((bytesRead = fileChannel.read(byteBuffer.clear(), position)) != -1){
+            int hashedFrom = 0;
+            for (int i = 0; i < bytesRead; i++){
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                long chunkLength = position + i + 1 - chunkStart;
+                if ((chunkLength >= Protocol.CDC_MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) || chunkLength >= Protocol.CDC_MAX_CHUNK){
+                    digest.update(buffer, hashedFrom, i + 1 - hashedFrom);
+                    chunks.add(new Chunk(chunkStart, (int) chunkLength, digest.digest()));
+                    chunkStart = position + i + 1;
+                    hashedFrom = i + 1;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, hashedFrom, bytesRead - hashedFrom);
+            position += bytesRead;
+        }
+
+        if (position > chunkStart){
+            chunks.add(new Chunk(chunkStart, (int) (position - chunkStart), digest.digest()));
+        }
+        return chunks;
+    }
+}
@@ -4,21 +4,110 @@ import java.nio.charset.StandardCharsets;
 
 public class Protocol {
     public static final int BUFFER_SIZE = 8192;
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 256 * 1024;
+    public static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024 * 1024;
     public static final int MAX_FILENAME_LENGTH = 4096;
     public static final long MAX_FILE_SIZE = 1L * 1024 * 1024 * 1024 * 1024;
 
+    //коды операций передаются вместо длины имени файла, поэтому отрицательные
+    public static final int OP_CHUNK_UPLOAD = -1;
+    public static final int OP_RESUMABLE_UPLOAD = -2;
+    public static final int OP_DEDUP_UPLOAD = -3;
+    public static final int OP_SESSION = -4;
+    public static final int OP_GET = -5;
+
     public static final int READY_FOR_METADATA = 100;
     public static final int READY_FOR_FILE = 101;
+    public static final int RESUME_OFFSET = 102;
+    public static final int CHECKSUM = 103;
+    public static final int NEED_CHUNKS = 104;
+    public static final int FILE_INFO = 105;
     public static final int SUCCESS = 200;
+    public static final int CHUNK_RECEIVED = 201;
+    public static final int SESSION_COMPLETE = 202;
     public static final int ERROR_INVALID_FILENAME = 400;
     public static final int ERROR_DISK_FULL = 401;
     public static final int ERROR_TRANSFER_FAILED = 402;
     public static final int ERROR_FILE_TOO_LARGE = 403;
+    public static final int ERROR_INVALID_CHUNK = 404;
+    public static final int ERROR_SERVER_BUSY = 405;
+    public static final int ERROR_UPLOAD_IN_PROGRESS = 406;
+    public static final int ERROR_CHECKSUM_MISMATCH = 407;
+    public static final int ERROR_FILE_NOT_FOUND = 408;
+    public static final int ERROR_INVALID_RANGE = 409;
+
+    public static final int MAX_CHUNKS = 64;
+    public static final long MIN_CHUNK_SIZE = 4L * 1024 * 1024;
+
+    public static final long RESUME_COMMIT_INTERVAL = 16L * 1024 * 1024;
+    public static final int MAX_UPLOAD_ATTEMPTS = 5;
+    public static final int RETRY_DELAY_MS = 3000;
+
+    //границы кусков для дедупликации режет клиент, сервер проверяет только размеры и хеши
+    public static final int CDC_MIN_CHUNK = 16 * 1024;
+    public static final int CDC_MAX_CHUNK = 256 * 1024;
+    public static final int DEDUP_MAX_CHUNKS = 4 * 1024 * 1024;
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+
+    //сжатие согласуется при докачке: сервер перечисляет свои кодеки, клиент выбирает по пробе начала файла
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int SUPPORTED_CODECS = 1 << CODEC_DEFLATE;
+    public static final int COMPRESSION_BLOCK_SIZE = 256 * 1024;
+    public static final int MAX_COMPRESSED_BLOCK_SIZE = 2 * COMPRESSION_BLOCK_SIZE;
+    public static final int COMPRESSION_PROBE_SIZE = 64 * 1024;
+    public static final double COMPRESSION_MIN_SAVING = 0.1;
+    public static final int COMPRESSION_QUEUE_SIZE = 4;
+
+    //отдача файлов: сколько диапазонов в одном запросе и какой порцией они отправляются
+    public static final int MAX_GET_RANGES = 1024;
+    public static final long GET_TRANSFER_SLICE = 8L * 1024 * 1024;
+
+    //в сессии небольшие файлы клиент отправляет через буфер, чтобы много файлов уходило одним системным вызовом
+    public static final int SESSION_INLINE_FILE_SIZE = 64 * 1024;
 
     public static final int SPEED_REPORT_INTERVAL_MS = 3000;
     public static final int SOCKET_TIMEOUT_MS = 30000;
 
+    public static final int DEFAULT_MAX_CLIENTS = 1024;
+    public static final int ACCEPT_BACKLOG = 1024;
+    public static final long WORKER_KEEP_ALIVE_MS = 60000;
+    public static final long WORKER_STACK_SIZE = 256 * 1024;
+
+    //ограничение скорости: допустимый всплеск и наибольшая порция чтения между проверками полосы
+    public static final int RATE_LIMIT_BURST_MS = 100;
+    public static final int FAIR_QUANTUM = 64 * 1024;
+
+    //запись на диск: потоки записи, буферы на соединение и сколько файлов сессии может ждать сброса на диск
+    public static final int DISK_WRITER_THREADS = 2;
+    public static final int DISK_FORCE_THREADS = 8;
+    public static final int WRITE_BEHIND_DEPTH = 2;
+    public static final int SESSION_MAX_PENDING_FORCES = 64;
+
+    //прием через отображение файла в память: размер окна и с какого размера этот способ выбирается по умолчанию
+    public static final int MMAP_WINDOW_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MMAP_RECEIVE_SIZE = 256L * 1024 * 1024;
+
     public static final String STRING_ENCODING = StandardCharsets.UTF_8.name();
     public static final String UPLOAD_DIR = "uploads";
+    public static final String PART_SUFFIX = ".part";
+    public static final String META_SUFFIX = ".meta";
+    public static final String TMP_SUFFIX = ".tmp";
+    public static final String DEDUP_DIR = ".dedup";
+    public static final String METRICS_LOG = "metrics.log";
+
+    public static boolean isCodecSupported(int codec){
+        return codec == CODEC_NONE || (codec > 0 && codec < Integer.SIZE - 1 && (SUPPORTED_CODECS & (1 << codec)) != 0);
+    }
+
+    //файл делится на chunkCount подряд идущих диапазонов почти равного размера
+    public static long chunkStart(long fileSize, int chunkCount, int chunkIndex){
+        long chunkSize = (fileSize + chunkCount - 1) / chunkCount;
+        return Math.min(fileSize, chunkSize * chunkIndex);
+    }
 
+    public static long chunkLength(long fileSize, int chunkCount, int chunkIndex){
+        return chunkStart(fileSize, chunkCount, chunkIndex + 1) - chunkStart(fileSize, chunkCount, chunkIndex);
+    }
 }
@@ -0,0 +1,242 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+//поднимает Server в этом же процессе и нагружает его множеством медленных загрузок с одного потока на селекторе.
+//раз в секунду печатает число активных загрузок, скорость, потоки и память сервера
+//args: [клиентов] [размер файла KB] [скорость клиента KB/s] [max_clients сервера] [буфер приема KB]
+public class LoadTest {
+    private static final int TICK_MS = 100;
+    private static final int CONNECTS_PER_TICK = 500;
+
+    private static final int CONNECTING = 0;
+    private static final int WAIT_METADATA = 1;
+    private static final int WAIT_FILE = 2;
+    private static final int SENDING = 3;
+    private static final int WAIT_STATUS = 4;
+
+    private static class Upload{
+        private final int index;
+        private final SocketChannel channel;
+        private final ByteBuffer response = ByteBuffer.allocate(Integer.BYTES);
+        private int state = CONNECTING;
+        private long remaining;
+        private long startTime;
+
+        private Upload(int index, SocketChannel channel, long size){
+            this.index = index;
+            this.channel = channel;
+            this.remaining = size;
+        }
+    }
+
+    private static int completed;
+    private static int rejected;
+    private static int failed;
+    private static long bytesSent;
+    private static final List<Long> latencies = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 64) * 1024;
+        int rate = (args.length > 2 ? Integer.parseInt(args[2]) : 16) * 1024;
+        int maxClients = args.length > 3 ? Integer.parseInt(args[3]) : clients;
+        int bufferSize = (args.length > 4 ? Integer.parseInt(args[4]) : 16) * 1024;
+
+        int port;
+        try(ServerSocket probe = new ServerSocket(0)){
+            port = probe.getLocalPort();
+        }
+
+        PrintStream out = System.out;
+        PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(nowhere);
+        System.setErr(nowhere);
+
+        Server server = new Server(port, bufferSize, maxClients);
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        out.printf("клиентов %d, файл %d KB, скорость клиента %d KB/s, max_clients %d, буфер %d KB%n",
+                clients, fileSize / 1024, rate / 1024, maxClients, bufferSize / 1024);
+        out.printf("%5s %8s %9s %8s %8s %9s %7s %9s %10s%n",
+                "сек", "активно", "готово", "отказ", "ошибка", "MB/s", "потоки", "heap MB", "direct MB");
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        ByteBuffer payload = ByteBuffer.allocateDirect(rate * TICK_MS / 1000 + 1);
+        List<Upload> sending = new ArrayList<>();
+        long maxHeap = 0;
+        int maxThreads = 0;
+
+        try(Selector selector = Selector.open()){
+            int opened = 0;
+            long start = System.currentTimeMillis();
+            long lastTick = start;
+            long lastReport = start;
+            long lastReportBytes = 0;
+
+            while(completed + rejected + failed < clients){
+                for (int i = 0; i < CONNECTS_PER_TICK && opened < clients; i++, opened++){
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    Upload upload = new Upload(opened, channel, fileSize);
+                    channel.connect(address);
+                    channel.register(selector, SelectionKey.OP_CONNECT, upload);
+                }
+
+                selector.select(TICK_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key, sending);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MS){
+                    lastTick = now;
+                    sendQuota(sending, payload);
+                }
+
+                if (now - lastReport >= 1000){
+                    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                    int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+                    maxHeap = Math.max(maxHeap, heap);
+                    maxThreads = Math.max(maxThreads, threads);
+                    out.printf("%5d %8d %9d %8d %8d %9.2f %7d %9.1f %10.1f%n",
+                            (now - start) / 1000, sending.size(), completed, rejected, failed,
+                            (bytesSent - lastReportBytes) / 1024.0 / 1024 / ((now - lastReport) / 1000.0),
+                            threads, heap / 1024.0 / 1024, directMemory() / 1024.0 / 1024);
+                    lastReport = now;
+                    lastReportBytes = bytesSent;
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - start;
+            out.printf("итого: %d загрузок за %.1f сек, %.1f файлов/с, %.2f MB/s, макс. потоков %d, макс. heap %.1f MB%n",
+                    completed, elapsed / 1000.0, completed * 1000.0 / elapsed, bytesSent / 1024.0 / 1024 / (elapsed / 1000.0),
+                    maxThreads, maxHeap / 1024.0 / 1024);
+            if (!latencies.isEmpty()){
+                latencies.sort(null);
+                out.printf("длительность загрузки: p50 %d мс, p99 %d мс, max %d мс%n",
+                        percentile(50), percentile(99), latencies.get(latencies.size() - 1));
+            }
+        }finally {
+            server.stop();
+        }
+    }
+
+    private static void handle(SelectionKey key, List<Upload> sending){
+        Upload upload = (Upload) key.attachment();
+        try{
+            if (key.isConnectable()){
+                upload.channel.finishConnect();
+                upload.state = WAIT_METADATA;
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            if (upload.channel.read(upload.response) == -1){
+                fail(key, upload, sending);
+                return;
+            }
+            if (upload.response.hasRemaining()){
+                return;
+            }
+            int code = upload.response.flip().getInt();
+            upload.response.clear();
+
+            if (upload.state == WAIT_METADATA && code == Protocol.READY_FOR_METADATA){
+                byte[] name = ("load-" + upload.index + ".bin").getBytes(StandardCharsets.UTF_8);
+                ByteBuffer metadata = ByteBuffer.allocate(Integer.BYTES + name.length + Long.BYTES);
+                metadata.putInt(name.length).put(name).putLong(upload.remaining).flip();
+                while (metadata.hasRemaining()){
+                    upload.channel.write(metadata);
+                }
+                upload.state = WAIT_FILE;
+            }else if (upload.state == WAIT_METADATA && code == Protocol.ERROR_SERVER_BUSY){
+                rejected++;
+                key.cancel();
+                upload.channel.close();
+            }else if (upload.state == WAIT_FILE && code == Protocol.READY_FOR_FILE){
+                upload.state = SENDING;
+                upload.startTime = System.currentTimeMillis();
+                sending.add(upload);
+            }else if (upload.state == WAIT_STATUS && code == Protocol.SUCCESS){
+                completed++;
+                latencies.add(System.currentTimeMillis() - upload.startTime);
+                key.cancel();
+                upload.channel.close();
+                Files.deleteIfExists(Paths.get(Protocol.UPLOAD_DIR, "load-" + upload.index + ".bin"));
+            }else{
+                fail(key, upload, sending);
+            }
+        }catch (IOException e){
+            fail(key, upload, sending);
+        }
+    }
+
+    //каждый тик медленный клиент отправляет только свою долю данных
+    private static void sendQuota(List<Upload> sending, ByteBuffer payload){
+        Iterator<Upload> iterator = sending.iterator();
+        while (iterator.hasNext()){
+            Upload upload = iterator.next();
+            try{
+                payload.clear().limit((int) Math.min(payload.capacity(), upload.remaining));
+                int written = upload.channel.write(payload);
+                upload.remaining -= written;
+                bytesSent += written;
+                if (upload.remaining == 0){
+                    upload.state = WAIT_STATUS;
+                    iterator.remove();
+                }
+            }catch (IOException e){
+                failed++;
+                iterator.remove();
+                try{
+                    upload.channel.close();
+                }catch (IOException ex){
+                }
+            }
+        }
+    }
+
+    private static void fail(SelectionKey key, Upload upload, List<Upload> sending){
+        failed++;
+        key.cancel();
+        sending.remove(upload);
+        try{
+            upload.channel.close();
+        }catch (IOException e){
+        }
+    }
+
+    private static long percentile(int percent){
+        return latencies.get(Math.min(latencies.size() - 1, latencies.size() * percent / 100));
+    }
+
+    private static long directMemory(){
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+            if (pool.getName().equals("direct")){
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,173 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+//сравнивает способы приема файла с сокета на диск, включая force перед ответом клиенту:
+//старый поток байт через byte[], буферы с записью в фоне (DiskWriter), transferFrom и отображение в память.
+//по результатам выбирается Protocol.DEFAULT_MMAP_RECEIVE_SIZE
+//args: [размеры файлов в MB через запятую] [число прогонов]
+public class ReceiveBenchmark {
+    private interface Receiver{
+        void receive(SocketChannel socketChannel, FileChannel fileChannel, long length) throws IOException;
+    }
+
+    private static final DiskWriter diskWriter = new DiskWriter();
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "16,256,1024").split(",");
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path source = Files.createTempFile("receive-bench-src", ".bin");
+        Path target = Files.createTempFile(Paths.get("."), "receive-bench-dst", ".bin");
+        try(ServerSocketChannel listener = ServerSocketChannel.open()){
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            System.out.printf("прогонов %d, окно отображения %d MB%n", runs, Protocol.MMAP_WINDOW_SIZE / 1024 / 1024);
+
+            for (String size : sizes){
+                long length = Long.parseLong(size.trim()) * 1024 * 1024;
+                generate(source, length);
+                System.out.printf("файл %d MB%n", length / 1024 / 1024);
+                for (int i = 0; i < runs; i++){
+                    measure("stream", source, target, listener, ReceiveBenchmark::receiveStream);
+                    measure("buffers", source, target, listener, ReceiveBenchmark::receiveBuffers);
+                    measure("transferFrom", source, target, listener, ReceiveBenchmark::receiveTransferFrom);
+                    measure("mmap", source, target, listener, ReceiveBenchmark::receiveMapped);
+                }
+            }
+        }finally {
+            diskWriter.stop();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    //так принимал файл сервер до перехода на каналы
+    private static void receiveStream(SocketChannel socketChannel, FileChannel fileChannel, long length) throws IOException{
+        DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+        OutputStream fileOut = Channels.newOutputStream(fileChannel);
+        byte[] buffer = new byte[Protocol.BUFFER_SIZE];
+        long totalReceived = 0;
+        int bytesRead;
+        while (totalReceived < length && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, length - totalReceived))) != -1){
+            fileOut.write(buffer, 0, bytesRead);
+            totalReceived += bytesRead;
+        }
+    }
+
+    private static void receiveBuffers(SocketChannel socketChannel, FileChannel fileChannel, long length) throws IOException{
+        DiskWriter.Stream stream = diskWriter.newStream(Protocol.DEFAULT_RECEIVE_BUFFER_SIZE);
+        long totalReceived = 0;
+        while (totalReceived < length){
+            ByteBuffer buffer = stream.takeBuffer();
+            buffer.limit((int) Math.min(buffer.capacity(), length - totalReceived));
+            int bytesRead = socketChannel.read(buffer);
+            if (bytesRead == -1){
+                stream.releaseBuffer(buffer);
+                break;
+            }
+            stream.write(fileChannel, buffer.flip(), totalReceived);
+            totalReceived += bytesRead;
+        }
+        stream.drain();
+    }
+
+    private static void receiveTransferFrom(SocketChannel socketChannel, FileChannel fileChannel, long length) throws IOException{
+        long totalReceived = 0;
+        while (totalReceived < length){
+            long received = fileChannel.transferFrom(socketChannel, totalReceived, length - totalReceived);
+            if (received <= 0){
+                break;
+            }
+            totalReceived += received;
+        }
+    }
+
+    private static void receiveMapped(SocketChannel socketChannel, FileChannel fileChannel, long length) throws IOException{
+        long totalReceived = 0;
+        while (totalReceived < length){
+            int windowSize = (int) Math.min(Protocol.MMAP_WINDOW_SIZE, length - totalReceived);
+            MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_WRITE, totalReceived, windowSize);
+            try{
+                while (window.hasRemaining()){
+                    if (socketChannel.read(window) == -1){
+                        return;
+                    }
+                }
+            }finally {
+                ClientHandler.unmap(window);
+            }
+            totalReceived += windowSize;
+        }
+    }
+
+    private static void measure(String name, Path source, Path target, ServerSocketChannel listener, Receiver receiver) throws Exception{
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long length = Files.size(source);
+        Files.deleteIfExists(target);
+
+        Thread sender = startSender(source, listener.getLocalAddress());
+        try(SocketChannel socketChannel = listener.accept();
+            RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")){
+            file.setLength(length);
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.nanoTime();
+
+            receiver.receive(socketChannel, file.getChannel(), length);
+            long received = System.nanoTime();
+            file.getChannel().force(false);
+
+            long elapsed = System.nanoTime() - start;
+            long cpu = os.getProcessCpuTime() - cpuStart;
+            double mb = length / (1024.0 * 1024.0);
+            System.out.printf("  %-13s %8.1f MB/s, прием %7.1f мс, force %7.1f мс, cpu процесса %7.1f мс/GB%n",
+                    name, mb / (elapsed / 1e9), (received - start) / 1e6, (elapsed - (received - start)) / 1e6, cpu / 1e6 / (mb / 1024));
+        }
+        sender.join();
+        if (Files.mismatch(source, target) != -1){
+            throw new IllegalStateException(name + ": принятый файл отличается от отправленного");
+        }
+    }
+
+    private static Thread startSender(Path source, SocketAddress address){
+        Thread thread = new Thread(() -> {
+            try(SocketChannel socketChannel = SocketChannel.open(address);
+                FileChannel fileChannel = FileChannel.open(source, StandardOpenOption.READ)){
+                long position = 0;
+                long length = fileChannel.size();
+                while (position < length){
+                    position += fileChannel.transferTo(position, length - position, socketChannel);
+                }
+            }catch (IOException e){
+                System.err.println("ошибка отправителя: " + e.getMessage());
+            }
+        }, "sender");
+        thread.start();
+        return thread;
+    }
+
+    private static void generate(Path file, long size) throws IOException{
+        try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            byte[] block = new byte[1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(block);
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            for (long written = 0; written < size; written += block.length){
+                buffer.clear().limit((int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()){
+                    fileChannel.write(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+//поднимает Server в этом же процессе и гоняет через loopback загрузки по протоколу клиента на полной скорости.
+//данные берутся из генератора, поэтому большие файлы-образцы не нужны, а принятые файлы сразу удаляются.
+//раз в секунду печатает прогресс, в конце - MB/s, файлов/с, перцентили длительности загрузки, потоки и heap
+//args: [загрузок] [размеры файлов KB через запятую] [параллельных клиентов] [resumable|legacy]
+public class SoakTest {
+    private static final int GENERATOR_BLOCK_SIZE = 256 * 1024;
+    private static final int SAMPLE_MS = 50;
+
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final AtomicInteger completed = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+    private static final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    public static void main(String[] args) throws Exception {
+        int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] sizeArgs = (args.length > 1 ? args[1] : "4,64,1024,16384").split(",");
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        boolean resumable = args.length <= 3 || args[3].equals("resumable");
+
+        long[] sizes = new long[sizeArgs.length];
+        for (int i = 0; i < sizes.length; i++){
+            sizes[i] = Long.parseLong(sizeArgs[i].trim()) * 1024;
+        }
+
+        int port;
+        try(ServerSocket probe = new ServerSocket(0)){
+            port = probe.getLocalPort();
+        }
+
+        PrintStream out = System.out;
+        PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(nowhere);
+        System.setErr(nowhere);
+
+        Server server = new Server(port);
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        out.printf("загрузок %d, размеры %s KB, параллельно %d, протокол %s%n",
+                uploads, String.join(",", sizeArgs), concurrency, resumable ? "resumable" : "legacy");
+        out.printf("%5s %9s %8s %9s %9s %7s %9s%n", "сек", "готово", "ошибка", "MB/s", "файлов/с", "потоки", "heap MB");
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        AtomicInteger nextUpload = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++){
+            clients.execute(() -> runClient(address, nextUpload, uploads, sizes, resumable));
+        }
+        clients.shutdown();
+
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long lastBytes = 0;
+        int lastCompleted = 0;
+        long maxHeap = 0;
+        int maxThreads = 0;
+        //потоки и heap снимаются часто, чтобы короткий прогон тоже попал в максимумы, а строка печатается раз в секунду
+        while (!clients.awaitTermination(SAMPLE_MS, TimeUnit.MILLISECONDS)){
+            long now = System.currentTimeMillis();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            maxHeap = Math.max(maxHeap, heap);
+            maxThreads = Math.max(maxThreads, threads);
+            if (now - lastReport < 1000){
+                continue;
+            }
+            double seconds = (now - lastReport) / 1000.0;
+            out.printf("%5d %9d %8d %9.2f %9.1f %7d %9.1f%n",
+                    (now - start) / 1000, completed.get(), failed.get(),
+                    (bytesSent.sum() - lastBytes) / 1024.0 / 1024 / seconds, (completed.get() - lastCompleted) / seconds,
+                    threads, heap / 1024.0 / 1024);
+            lastReport = now;
+            lastBytes = bytesSent.sum();
+            lastCompleted = completed.get();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        out.printf("итого: %d загрузок, ошибок %d за %.1f сек, %.2f MB/s, %.1f файлов/с%n",
+                completed.get(), failed.get(), elapsed / 1000.0,
+                bytesSent.sum() / 1024.0 / 1024 / (elapsed / 1000.0), completed.get() * 1000.0 / elapsed);
+        out.printf("потоки: до нагрузки %d, максимум %d (из них клиентов %d), макс. heap %.1f MB%n",
+                baseThreads, maxThreads, concurrency, maxHeap / 1024.0 / 1024);
+        if (!latencies.isEmpty()){
+            latencies.sort(null);
+            out.printf("длительность загрузки: p50 %d мс, p90 %d мс, p99 %d мс, max %d мс%n",
+                    percentile(50), percentile(90), percentile(99), latencies.get(latencies.size() - 1));
+        }
+        server.stop();
+        System.exit(failed.get() == 0 ? 0 : 1);
+    }
+
+    private static void runClient(InetSocketAddress address, AtomicInteger nextUpload, int uploads, long[] sizes, boolean resumable){
+        ByteBuffer block = ByteBuffer.allocateDirect(GENERATOR_BLOCK_SIZE);
+        byte[] random = new byte[GENERATOR_BLOCK_SIZE];
+        ThreadLocalRandom.current().nextBytes(random);
+        block.put(random).flip();
+
+        int index;
+        while ((index = nextUpload.getAndIncrement()) < uploads){
+            String filename = "soak-" + index + ".bin";
+            long size = sizes[index % sizes.length];
+            long start = System.nanoTime();
+            try{
+                if (upload(address, filename, size, block, resumable)){
+                    completed.incrementAndGet();
+                    latencies.add((System.nanoTime() - start) / 1_000_000);
+                }else{
+                    failed.incrementAndGet();
+                }
+            }catch (IOException e){
+                failed.incrementAndGet();
+            }
+            try{
+                Files.deleteIfExists(Paths.get(Protocol.UPLOAD_DIR, filename));
+            }catch (IOException e){
+            }
+        }
+    }
+
+    //те же сообщения, что отправляет Client, только данные генерируются на лету
+    private static boolean upload(InetSocketAddress address, String filename, long size, ByteBuffer block, boolean resumable) throws IOException{
+        try(SocketChannel socketChannel = SocketChannel.open(address);
+            DataInputStream dataIn = new DataInputStream(socketChannel.socket().getInputStream());
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream()))){
+
+            socketChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+            if (dataIn.readInt() != Protocol.READY_FOR_METADATA){
+                return false;
+            }
+
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+            if (resumable){
+                dataOut.writeInt(Protocol.OP_RESUMABLE_UPLOAD);
+            }
+            dataOut.writeInt(name.length);
+            dataOut.write(name);
+            dataOut.writeLong(size);
+            dataOut.flush();
+
+            if (resumable){
+                if (dataIn.readInt() != Protocol.RESUME_OFFSET){
+                    return false;
+                }
+                dataIn.readLong();
+                dataIn.readLong();
+                dataIn.readInt();
+                dataOut.writeLong(0);
+                dataOut.writeInt(Protocol.CODEC_NONE);
+                dataOut.flush();
+            }
+            if (dataIn.readInt() != Protocol.READY_FOR_FILE){
+                return false;
+            }
+
+            CRC32C checksum = new CRC32C();
+            long sent = 0;
+            while (sent < size){
+                ByteBuffer payload = block.duplicate();
+                payload.limit((int) Math.min(payload.capacity(), size - sent));
+                if (resumable){
+                    checksum.update(payload.duplicate());
+                }
+                while (payload.hasRemaining()){
+                    int written = socketChannel.write(payload);
+                    sent += written;
+                    bytesSent.add(written);
+                }
+            }
+
+            if (resumable){
+                dataOut.writeInt(Protocol.CHECKSUM);
+                dataOut.writeLong(checksum.getValue());
+                dataOut.flush();
+            }
+            return dataIn.readInt() == Protocol.SUCCESS;
+        }
+    }
+
+    private static long percentile(int percent){
+        return latencies.get(Math.min(latencies.size() - 1, latencies.size() * percent / 100));
+    }
+}
@@ -0,0 +1,106 @@
+package org.example;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+//ограничение скорости приема: общий token bucket держит суммарную скорость ниже устойчивой скорости диска,
+//а отдельный bucket на каждый адрес клиента не дает одному быстрому клиенту забрать весь канал.
+//поток сначала читает, потом платит за прочитанное и спит, пока долг не погасится. чтение ограничено
+//небольшим квантом, поэтому при общем долге все активные загрузки получают примерно равные доли
+public class BandwidthLimiter {
+    private final TokenBucket totalBucket;
+    private final long clientRate;
+    private final int quantum;
+    private final ConcurrentHashMap<InetAddress, ClientShare> clients = new ConcurrentHashMap<>();
+
+    //0 - без ограничения
+    public BandwidthLimiter(long totalRate, long clientRate){
+        this.totalBucket = totalRate > 0 ? new TokenBucket(totalRate) : null;
+        this.clientRate = clientRate;
+
+        long slowestRate = Math.min(totalRate > 0 ? totalRate : Long.MAX_VALUE, clientRate > 0 ? clientRate : Long.MAX_VALUE);
+        if (slowestRate == Long.MAX_VALUE){
+            this.quantum = Integer.MAX_VALUE;
+        }else{
+            //квант не больше чем на RATE_LIMIT_BURST_MS при самой низкой скорости, чтобы сон после чтения был коротким
+            long rateQuantum = slowestRate * Protocol.RATE_LIMIT_BURST_MS / 1000;
+            this.quantum = (int) Math.max(Protocol.BUFFER_SIZE, Math.min(Protocol.FAIR_QUANTUM, rateQuantum));
+        }
+    }
+
+    //все соединения с одного адреса (например, части одного файла) делят одну долю
+    public ClientShare join(InetAddress address){
+        return clients.compute(address, (key, share) -> {
+            if (share == null){
+                share = new ClientShare(key);
+            }
+            share.connections++;
+            return share;
+        });
+    }
+
+    public class ClientShare implements AutoCloseable{
+        private final InetAddress address;
+        private final TokenBucket bucket;
+        //меняется только внутри compute по этому адресу
+        private int connections;
+
+        private ClientShare(InetAddress address){
+            this.address = address;
+            this.bucket = clientRate > 0 ? new TokenBucket(clientRate) : null;
+        }
+
+        //сколько байт читать из сокета за раз
+        public int quantum(){
+            return quantum;
+        }
+
+        //вызывается после чтения очередной порции
+        public void consume(long bytes) throws InterruptedIOException{
+            long waitNanos = 0;
+            if (bucket != null){
+                waitNanos = bucket.reserve(bytes);
+            }
+            if (totalBucket != null){
+                waitNanos = Math.max(waitNanos, totalBucket.reserve(bytes));
+            }
+            if (waitNanos <= 0){
+                return;
+            }
+            try{
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("ожидание полосы прервано");
+            }
+        }
+
+        @Override
+        public void close(){
+            clients.computeIfPresent(address, (key, share) -> --share.connections == 0 ? null : share);
+        }
+    }
+
+    //bucket с долгом: токены могут уйти в минус, и возвращается время, за которое долг погасится
+    private static class TokenBucket{
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(long bytesPerSecond){
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            this.capacity = bytesPerSecond * Protocol.RATE_LIMIT_BURST_MS / 1000.0;
+            this.tokens = capacity;
+        }
+
+        private synchronized long reserve(long bytes){
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerNano);
+            lastRefill = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / bytesPerNano);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+//общий для всех обработчиков реестр загрузок, которые идут частями по нескольким соединениям
+public class ChunkedUploads {
+    private final ConcurrentHashMap<Long, Upload> uploads = new ConcurrentHashMap<>();
+
+    public Upload acquire(long uploadId, String filename, long fileSize, int chunkCount) throws IOException{
+        removeStale();
+
+        Upload upload;
+        try{
+            upload = uploads.computeIfAbsent(uploadId, id -> {
+                try{
+                    return new Upload(id, filename, fileSize, chunkCount);
+                }catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+
+        if (!upload.filename.equals(filename) || upload.fileSize != fileSize || upload.chunkCount != chunkCount){
+            return null;
+        }
+        return upload;
+    }
+
+    //загрузки, по которым давно не приходило частей, считаются брошенными
+    private void removeStale(){
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()){
+            if (upload.isStale(now)){
+                upload.fail();
+            }
+        }
+    }
+
+    public class Upload{
+        private final long uploadId;
+        private final String filename;
+        private final Path filePath;
+        private final long fileSize;
+        private final int chunkCount;
+        private final RandomAccessFile file;
+        private final BitSet startedChunks;
+        private final BitSet receivedChunks;
+        private int activeChunks;
+        private long lastActivity;
+        private boolean finished;
+
+        private Upload(long uploadId, String filename, long fileSize, int chunkCount) throws IOException{
+            this.uploadId = uploadId;
+            this.filename = filename;
+            this.filePath = Paths.get(Protocol.UPLOAD_DIR, filename);
+            this.fileSize = fileSize;
+            this.chunkCount = chunkCount;
+            this.startedChunks = new BitSet(chunkCount);
+            this.receivedChunks = new BitSet(chunkCount);
+            this.lastActivity = System.currentTimeMillis();
+
+            //файл сразу выделяется целиком, части пишутся каждая по своему смещению
+            this.file = new RandomAccessFile(filePath.toFile(), "rw");
+            try{
+                file.setLength(fileSize);
+            }catch (IOException e){
+                file.close();
+                throw e;
+            }
+        }
+
+        public String getFilename(){
+            return filename;
+        }
+
+        public FileChannel getChannel(){
+            return file.getChannel();
+        }
+
+        public synchronized boolean beginChunk(int chunkIndex){
+            if (finished || startedChunks.get(chunkIndex)){
+                return false;
+            }
+            startedChunks.set(chunkIndex);
+            activeChunks++;
+            lastActivity = System.currentTimeMillis();
+            return true;
+        }
+
+        //возвращает true, если эта часть была последней и файл получен полностью
+        public synchronized boolean completeChunk(int chunkIndex) throws IOException{
+            activeChunks--;
+            lastActivity = System.currentTimeMillis();
+            if (finished){
+                throw new IOException("загрузка уже прервана");
+            }
+
+            receivedChunks.set(chunkIndex);
+            if (receivedChunks.cardinality() < chunkCount){
+                return false;
+            }
+
+            finished = true;
+            uploads.remove(uploadId, this);
+            file.close();
+            return true;
+        }
+
+        public synchronized void failChunk(){
+            activeChunks--;
+            fail();
+        }
+
+        private synchronized void fail(){
+            if (finished){
+                return;
+            }
+            finished = true;
+            uploads.remove(uploadId, this);
+            try{
+                file.close();
+                Files.deleteIfExists(filePath);
+            }catch (IOException e){
+                System.err.println("не удалось удалить недогруженный файл '" + filename + "': " + e.getMessage());
+            }
+        }
+
+        private synchronized boolean isStale(long now){
+            return activeChunks == 0 && now - lastActivity > Protocol.SOCKET_TIMEOUT_MS;
+        }
+    }
+}
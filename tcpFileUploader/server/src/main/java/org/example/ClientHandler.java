@@ -2,47 +2,117 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ClientHandler implements Runnable{
-    private Socket clientSocket;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try{
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }catch (ReflectiveOperationException | RuntimeException e){
+            System.err.println("явное освобождение отображенных файлов недоступно: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private SocketChannel clientChannel;
     private int clientId;
+    private ChunkedUploads chunkedUploads;
+    private ResumableUploads resumableUploads;
+    private DedupStore dedupStore;
+    private TransferMetrics metrics;
+    private BandwidthLimiter limiter;
+    private BandwidthLimiter.ClientShare bandwidth;
+    private int receiveBufferSize;
+    private long mappedReceiveSize;
+    private DiskWriter diskWriter;
+    private DiskWriter.Stream diskStream;
     private DataInputStream dataIn;
     private DataOutputStream dataOut;
 
-    public ClientHandler(Socket socket, int clientId){
-        this.clientSocket = socket;
+    public ClientHandler(SocketChannel channel, int clientId, ChunkedUploads chunkedUploads, ResumableUploads resumableUploads, DedupStore dedupStore, TransferMetrics metrics, BandwidthLimiter limiter, DiskWriter diskWriter, int receiveBufferSize, long mappedReceiveSize){
+        this.clientChannel = channel;
         this.clientId = clientId;
+        this.chunkedUploads = chunkedUploads;
+        this.resumableUploads = resumableUploads;
+        this.dedupStore = dedupStore;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.diskWriter = diskWriter;
+        this.receiveBufferSize = receiveBufferSize;
+        this.mappedReceiveSize = mappedReceiveSize;
     }
 
 
     @Override
     public void run() {
         try{
-            dataIn = new DataInputStream(clientSocket.getInputStream());
-            dataOut = new DataOutputStream(clientSocket.getOutputStream());
+            dataIn = new DataInputStream(clientChannel.socket().getInputStream());
+            dataOut = new DataOutputStream(clientChannel.socket().getOutputStream());
+            bandwidth = limiter.join(clientChannel.socket().getInetAddress());
 
             dataOut.writeInt(Protocol.READY_FOR_METADATA);
             dataOut.flush();
 
             int filenameLength = dataIn.readInt();
-            if (filenameLength <= 0 || filenameLength > Protocol.MAX_FILENAME_LENGTH){
-                sendError(Protocol.ERROR_INVALID_FILENAME, "неверная длина имени файла");
+            if (filenameLength == Protocol.OP_CHUNK_UPLOAD){
+                handleChunkUpload();
+                return;
+            }
+            if (filenameLength == Protocol.OP_RESUMABLE_UPLOAD){
+                handleResumableUpload();
+                return;
+            }
+            if (filenameLength == Protocol.OP_DEDUP_UPLOAD){
+                handleDedupUpload();
+                return;
+            }
+            if (filenameLength == Protocol.OP_SESSION){
+                handleSession();
+                return;
+            }
+            if (filenameLength == Protocol.OP_GET){
+                handleGet();
                 return;
             }
 
-            byte[] filenameBytes = new byte[filenameLength];
-            dataIn.readFully(filenameBytes);
-            String filename = new String(filenameBytes, Protocol.STRING_ENCODING);
-            if (!isFilenameSafe(filename)){
-                sendError(Protocol.ERROR_INVALID_FILENAME, "небезопасное имя файла");
+            String filename = readFilename(filenameLength);
+            if (filename == null){
                 return;
             }
 
             long fileSize = dataIn.readLong();
             if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE){
                 sendError(Protocol.ERROR_FILE_TOO_LARGE, "слишком большой файл");
+                return;
             }
 
             System.out.printf("клииент %d: файл '%s', размер: %d байт%n", clientId, filename, fileSize);
@@ -68,78 +138,581 @@ public class ClientHandler implements Runnable{
     }
 
     private void closeResources(){
+        if (bandwidth != null){
+            bandwidth.close();
+        }
         try{
             if (dataIn != null){
                 dataIn.close();
             } if (dataOut != null){
                 dataOut.close();
-            } if (clientSocket != null){
-                clientSocket.close();
+            } if (clientChannel != null){
+                clientChannel.close();
             }
         }catch (IOException e){
             System.out.println("ошибка закрытия ресурсов клиента " + clientId + ": " + e.getMessage());
         }
     }
 
-    private boolean reveiveFile(String filename, long expectedSize){
-        Path filePath = Paths.get(Protocol.UPLOAD_DIR, filename);
+    private String readFilename(int filenameLength) throws IOException{
+        if (filenameLength <= 0 || filenameLength > Protocol.MAX_FILENAME_LENGTH){
+            sendError(Protocol.ERROR_INVALID_FILENAME, "неверная длина имени файла");
+            return null;
+        }
 
-        try(FileOutputStream fileOut = new FileOutputStream(filePath.toFile())){
-            byte[] buffer = new byte[Protocol.BUFFER_SIZE];
-            long totalReceived = 0;
-            long startTime = System.currentTimeMillis();
+        byte[] filenameBytes = new byte[filenameLength];
+        dataIn.readFully(filenameBytes);
+        String filename = new String(filenameBytes, Protocol.STRING_ENCODING);
+        if (!isFilenameSafe(filename)){
+            sendError(Protocol.ERROR_INVALID_FILENAME, "небезопасное имя файла");
+            return null;
+        }
+        return filename;
+    }
+
+    private void handleChunkUpload() throws IOException{
+        long uploadId = dataIn.readLong();
+        String filename = readFilename(dataIn.readInt());
+        if (filename == null){
+            return;
+        }
+
+        long fileSize = dataIn.readLong();
+        int chunkCount = dataIn.readInt();
+        int chunkIndex = dataIn.readInt();
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE){
+            sendError(Protocol.ERROR_FILE_TOO_LARGE, "слишком большой файл");
+            return;
+        }
+        if (chunkCount <= 0 || chunkCount > Protocol.MAX_CHUNKS || chunkIndex < 0 || chunkIndex >= chunkCount){
+            sendError(Protocol.ERROR_INVALID_CHUNK, "неверный номер части файла");
+            return;
+        }
 
-            AtomicLong lastPeriodBytes = new AtomicLong(0);
-            AtomicLong totalBytes = new AtomicLong(0);
+        ChunkedUploads.Upload upload = chunkedUploads.acquire(uploadId, filename, fileSize, chunkCount);
+        if (upload == null || !upload.beginChunk(chunkIndex)){
+            sendError(Protocol.ERROR_INVALID_CHUNK, "часть файла не относится к текущей загрузке или уже получена");
+            return;
+        }
 
-            Thread speedUpload = new Thread(() ->{
-                while(!Thread.currentThread().isInterrupted() && totalBytes.get() < expectedSize){
-                    try{
-                        Thread.sleep(Protocol.SPEED_REPORT_INTERVAL_MS);
+        long offset = Protocol.chunkStart(fileSize, chunkCount, chunkIndex);
+        long length = Protocol.chunkLength(fileSize, chunkCount, chunkIndex);
+        System.out.printf("клиент %d: часть %d/%d файла '%s', смещение %d, размер %d байт%n", clientId, chunkIndex + 1, chunkCount, filename, offset, length);
 
-                        long currentTime = System.currentTimeMillis();
-                        long elapsedTime = currentTime  - startTime;
-                        long currentTotalBytes = totalBytes.get();
-                        long currentPeriodBytes = lastPeriodBytes.getAndSet(0);
+        try{
+            dataOut.writeInt(Protocol.READY_FOR_FILE);
+            dataOut.flush();
 
-                        if(elapsedTime > 0){
-                            double instantSpeed = (currentPeriodBytes*1000.0)/Protocol.SPEED_REPORT_INTERVAL_MS;
-                            double averageSpeed = (currentTotalBytes*1000.0)/elapsedTime;
-                            System.out.printf("клиент %d: мгновенная скорость - %.2f KB/s, средняя скорость - %.2f KB/s%n", clientId, instantSpeed/1024, averageSpeed/1024);
-                        }
-                    }catch (InterruptedException e){
-                        break;
-                    }
+            CRC32C checksum = new CRC32C();
+            long received = receiveRange(filename, upload.getChannel(), offset, length, checksum, null);
+            if (received != length){
+                System.err.printf("клиент %d: часть %d оборвалась, ожидалось %d, получено %d%n", clientId, chunkIndex + 1, length, received);
+                upload.failChunk();
+                sendError(Protocol.ERROR_TRANSFER_FAILED, "ошибка передачи части файла");
+                return;
+            }
+            if (!verifyChecksum(checksum.getValue())){
+                upload.failChunk();
+                return;
+            }
+            //части одного файла, закончившиеся одновременно, сбрасываются на диск одним force
+            diskWriter.force(upload.getChannel());
+        }catch (IOException e){
+            upload.failChunk();
+            throw e;
+        }
+        //completeChunk сам снимает часть с учета, поэтому при его ошибке failChunk вызывать нельзя
+        boolean completed = upload.completeChunk(chunkIndex);
+        if (completed){
+            //файл создан при первой части, его запись в каталоге тоже должна попасть на диск
+            diskWriter.forceDirectory(Paths.get(Protocol.UPLOAD_DIR));
+            dedupStore.removeManifest(filename);
+        }
+
+        if (completed){
+            dataOut.writeInt(Protocol.SUCCESS);
+            System.out.println("клиент " + clientId + ": все части получены, файл '" + filename + "' успешно сохранен");
+        }else{
+            dataOut.writeInt(Protocol.CHUNK_RECEIVED);
+            System.out.println("клиент " + clientId + ": часть " + (chunkIndex + 1) + " получена");
+        }
+        dataOut.flush();
+    }
+
+    private void handleResumableUpload() throws IOException{
+        String filename = readFilename(dataIn.readInt());
+        if (filename == null){
+            return;
+        }
+
+        long fileSize = dataIn.readLong();
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE){
+            sendError(Protocol.ERROR_FILE_TOO_LARGE, "слишком большой файл");
+            return;
+        }
+
+        ResumableUploads.Upload upload = resumableUploads.acquire(filename, fileSize);
+        if (upload == null){
+            sendError(Protocol.ERROR_UPLOAD_IN_PROGRESS, "файл '" + filename + "' уже загружается другим клиентом");
+            return;
+        }
+
+        try{
+            dataOut.writeInt(Protocol.RESUME_OFFSET);
+            dataOut.writeLong(upload.getCommittedOffset());
+            dataOut.writeLong(upload.getPrefixChecksum());
+            dataOut.writeInt(Protocol.SUPPORTED_CODECS);
+            dataOut.flush();
+
+            long startOffset = dataIn.readLong();
+            int codec = dataIn.readInt();
+            if (!upload.startFrom(startOffset)){
+                sendError(Protocol.ERROR_TRANSFER_FAILED, "неверное смещение докачки " + startOffset);
+                return;
+            }
+            if (!Protocol.isCodecSupported(codec)){
+                sendError(Protocol.ERROR_TRANSFER_FAILED, "неподдерживаемый кодек сжатия " + codec);
+                return;
+            }
+            System.out.printf("клиент %d: файл '%s', размер: %d байт, продолжение с %d байта%s%n", clientId, filename, fileSize, startOffset,
+                    codec == Protocol.CODEC_DEFLATE ? ", сжатие deflate" : "");
+
+            dataOut.writeInt(Protocol.READY_FOR_FILE);
+            dataOut.flush();
+
+            long received = codec == Protocol.CODEC_DEFLATE
+                    ? receiveCompressedRange(filename, upload.getChannel(), startOffset, fileSize - startOffset, upload.getChecksum(), upload)
+                    : receiveRange(filename, upload.getChannel(), startOffset, fileSize - startOffset, upload.getChecksum(), upload);
+            if (startOffset + received != fileSize){
+                upload.commit();
+                System.err.printf("клиент %d: передача прервана, для докачки сохранено %d из %d байт%n", clientId, upload.getCommittedOffset(), fileSize);
+                sendError(Protocol.ERROR_TRANSFER_FAILED, "ошибка передачи файла");
+                return;
+            }
+            if (!verifyChecksum(upload.getChecksum().getValue())){
+                upload.discard();
+                return;
+            }
+
+            diskWriter.force(upload.getChannel());
+            upload.complete();
+            //переименование .part в итоговое имя надежно только после сброса каталога
+            diskWriter.forceDirectory(Paths.get(Protocol.UPLOAD_DIR));
+            dedupStore.removeManifest(filename);
+            dataOut.writeInt(Protocol.SUCCESS);
+            dataOut.flush();
+            System.out.println("клиент " + clientId + ": файл успешно получен");
+        }catch (IOException e){
+            upload.commitQuietly();
+            throw e;
+        }finally {
+            upload.release();
+        }
+    }
+
+    //клиент присылает список кусков файла (длина и SHA-256), сервер отвечает какие из них ему нужны,
+    //и по сети идут только куски, которых еще нет в хранилище
+    private void handleDedupUpload() throws IOException{
+        String filename = readFilename(dataIn.readInt());
+        if (filename == null){
+            return;
+        }
+
+        long fileSize = dataIn.readLong();
+        int chunkCount = dataIn.readInt();
+        if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE){
+            sendError(Protocol.ERROR_FILE_TOO_LARGE, "слишком большой файл");
+            return;
+        }
+        //все куски кроме последнего не короче CDC_MIN_CHUNK, больше кусков в файле такого размера не бывает
+        if (chunkCount < 0 || chunkCount > Protocol.DEDUP_MAX_CHUNKS || chunkCount > fileSize / Protocol.CDC_MIN_CHUNK + 1){
+            sendError(Protocol.ERROR_INVALID_CHUNK, "слишком много кусков в файле");
+            return;
+        }
+
+        //массивы растут по мере прихода записей, чтобы один заголовок не заставлял сразу выделять память под весь список
+        int capacity = Math.min(chunkCount, 1024);
+        int[] lengths = new int[capacity];
+        byte[][] hashes = new byte[capacity][];
+        long totalLength = 0;
+        boolean valid = true;
+        for (int i = 0; i < chunkCount; i++){
+            if (i == lengths.length){
+                capacity = (int) Math.min(chunkCount, 2L * capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                hashes = Arrays.copyOf(hashes, capacity);
+            }
+            lengths[i] = dataIn.readInt();
+            hashes[i] = new byte[Protocol.HASH_LENGTH];
+            dataIn.readFully(hashes[i]);
+            if (lengths[i] <= 0 || lengths[i] > Protocol.CDC_MAX_CHUNK){
+                valid = false;
+            }
+            totalLength += lengths[i];
+        }
+        if (!valid || totalLength != fileSize){
+            sendError(Protocol.ERROR_INVALID_CHUNK, "список кусков не соответствует файлу");
+            return;
+        }
+
+        //повторяющийся внутри файла кусок тоже запрашивается только один раз
+        List<Integer> needed = new ArrayList<>();
+        Set<ByteBuffer> requested = new HashSet<>();
+        long neededBytes = 0;
+        for (int i = 0; i < chunkCount; i++){
+            if (!dedupStore.hasChunk(hashes[i]) && requested.add(ByteBuffer.wrap(hashes[i]))){
+                needed.add(i);
+                neededBytes += lengths[i];
+            }
+        }
+        System.out.printf("клиент %d: файл '%s', размер: %d байт, нужно %d из %d кусков (%d байт)%n", clientId, filename, fileSize, needed.size(), chunkCount, neededBytes);
+
+        dataOut.writeInt(Protocol.NEED_CHUNKS);
+        dataOut.writeInt(needed.size());
+        for (int index : needed){
+            dataOut.writeInt(index);
+        }
+        dataOut.flush();
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[Protocol.CDC_MAX_CHUNK];
+        Set<Path> changedDirs = new HashSet<>();
+        for (int index : needed){
+            dataIn.readFully(buffer, 0, lengths[index]);
+            digest.update(buffer, 0, lengths[index]);
+            if (!MessageDigest.isEqual(digest.digest(), hashes[index])){
+                sendError(Protocol.ERROR_CHECKSUM_MISMATCH, "хеш куска " + index + " не совпал");
+                return;
+            }
+            dedupStore.storeChunk(hashes[index], buffer, lengths[index], changedDirs);
+        }
+
+        //SUCCESS уходит только когда куски, манифест и их записи в каталогах уже на диске
+        diskWriter.forceDirectories(changedDirs);
+        dedupStore.writeManifest(filename, fileSize, lengths, hashes);
+        //под одним именем лежит либо обычный файл, либо манифест, прежний обычный файл удаляется
+        Path plainPath = Paths.get(Protocol.UPLOAD_DIR, filename);
+        if (Files.isRegularFile(plainPath) && Files.deleteIfExists(plainPath)){
+            diskWriter.forceDirectory(plainPath.toAbsolutePath().getParent());
+        }
+        dataOut.writeInt(Protocol.SUCCESS);
+        dataOut.flush();
+        System.out.printf("клиент %d: файл '%s' сохранен, по сети получено %d из %d байт%n", clientId, filename, neededBytes, fileSize);
+    }
+
+    //отдача файла: клиент присылает путь и список диапазонов (смещение, длина, -1 - до конца файла),
+    //сервер отвечает размером файла и затем каждым диапазоном (смещение, длина, данные через transferTo).
+    //без диапазонов клиент узнает только размер, а большой файл может качать частями по нескольким соединениям
+    private void handleGet() throws IOException{
+        int pathLength = dataIn.readInt();
+        if (pathLength <= 0 || pathLength > Protocol.MAX_FILENAME_LENGTH){
+            sendError(Protocol.ERROR_INVALID_FILENAME, "неверная длина пути");
+            return;
+        }
+        byte[] pathBytes = new byte[pathLength];
+        dataIn.readFully(pathBytes);
+        String path = new String(pathBytes, Protocol.STRING_ENCODING);
+
+        int rangeCount = dataIn.readInt();
+        if (rangeCount < 0 || rangeCount > Protocol.MAX_GET_RANGES){
+            sendError(Protocol.ERROR_INVALID_RANGE, "неверное число диапазонов");
+            return;
+        }
+        long[] offsets = new long[rangeCount];
+        long[] lengths = new long[rangeCount];
+        for (int i = 0; i < rangeCount; i++){
+            offsets[i] = dataIn.readLong();
+            lengths[i] = dataIn.readLong();
+        }
+
+        if (!isRelativePathSafe(path)){
+            sendError(Protocol.ERROR_INVALID_FILENAME, "небезопасный путь");
+            return;
+        }
+
+        //файл, загруженный с дедупликацией, лежит только манифестом и собирается из кусков на лету
+        Path filePath = Paths.get(Protocol.UPLOAD_DIR, path);
+        FileChannel fileChannel = null;
+        DedupStore.Manifest manifest = null;
+        long fileSize;
+        if (Files.isRegularFile(filePath)){
+            fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+        }else if (!path.contains("/") && (manifest = dedupStore.readManifest(path)) != null){
+            fileSize = manifest.fileSize;
+        }else{
+            sendError(Protocol.ERROR_FILE_NOT_FOUND, "файл '" + path + "' не найден");
+            return;
+        }
+
+        try{
+            for (int i = 0; i < rangeCount; i++){
+                if (lengths[i] < 0){
+                    lengths[i] = fileSize - offsets[i];
                 }
-            });
+                if (offsets[i] < 0 || offsets[i] > fileSize || lengths[i] < 0){
+                    sendError(Protocol.ERROR_INVALID_RANGE, "диапазон " + offsets[i] + "+" + lengths[i] + " вне файла размером " + fileSize);
+                    return;
+                }
+                lengths[i] = Math.min(lengths[i], fileSize - offsets[i]);
+            }
 
-            speedUpload.start();
+            System.out.printf("клиент %d: отдача '%s', размер %d байт, диапазонов %d%n", clientId, path, fileSize, rangeCount);
+            dataOut.writeInt(Protocol.FILE_INFO);
+            dataOut.writeLong(fileSize);
+            dataOut.flush();
 
-            while(totalReceived < expectedSize){
-                int bytesToRead = (int) Math.min(Protocol.BUFFER_SIZE, expectedSize - totalReceived);
-                int bytesRead = dataIn.read(buffer, 0, bytesToRead);
+            for (int i = 0; i < rangeCount; i++){
+                dataOut.writeLong(offsets[i]);
+                dataOut.writeLong(lengths[i]);
+                dataOut.flush();
+                if (sendRange(path, fileChannel, manifest, offsets[i], lengths[i]) != lengths[i]){
+                    throw new EOFException("файл '" + path + "' стал короче во время отдачи");
+                }
+            }
+        }finally {
+            if (fileChannel != null){
+                fileChannel.close();
+            }
+        }
+    }
 
-                if (bytesRead == -1){
+    //отправка идет порциями, чтобы метрики видели прогресс, а сторож мог закрыть соединение с зависшим клиентом
+    private long sendRange(String path, FileChannel fileChannel, DedupStore.Manifest manifest, long offset, long length) throws IOException{
+        long sent = 0;
+        try(TransferMetrics.Transfer transfer = metrics.beginDownload(clientId, path, clientChannel, length)){
+            while (sent < length){
+                long slice = Math.min(Protocol.GET_TRANSFER_SLICE, length - sent);
+                long transferred = fileChannel != null
+                        ? fileChannel.transferTo(offset + sent, slice, clientChannel)
+                        : dedupStore.transferRange(manifest, offset + sent, slice, clientChannel);
+                if (transferred <= 0){
                     break;
                 }
+                sent += transferred;
+                transfer.add(transferred);
+            }
+        }
+        return sent;
+    }
 
-                fileOut.write(buffer, 0, bytesRead);
-                totalReceived += bytesRead;
+    //принятый файл сессии, подтверждение по которому ждет сброса на диск
+    private static class SessionAck{
+        private final int recordIndex;
+        private final String path;
+        private int status;
+        private RandomAccessFile file;
+        private CompletableFuture<Void> durable;
+
+        private SessionAck(int recordIndex, String path, int status){
+            this.recordIndex = recordIndex;
+            this.path = path;
+            this.status = status;
+        }
+    }
+
+    //сессия: по одному соединению подряд идут записи (путь, размер, данные, CRC32C) без ожидания ответа на каждую.
+    //подтверждение (статус, номер записи) отправляется, когда файл сброшен на диск. сброс идет в фоне группами,
+    //поэтому следующие файлы принимаются, пока предыдущие ждут force, а подтверждения уходят по порядку
+    private void handleSession() throws IOException{
+        System.out.println("клиент " + clientId + ": сессия загрузки нескольких файлов");
+        ArrayDeque<SessionAck> pendingAcks = new ArrayDeque<>();
+        int recordIndex = 0;
+        int succeeded = 0;
+
+        try{
+            while (true){
+                int pathLength = dataIn.readInt();
+                if (pathLength == 0){
+                    break;
+                }
+                if (pathLength < 0 || pathLength > Protocol.MAX_FILENAME_LENGTH){
+                    sendError(Protocol.ERROR_INVALID_FILENAME, "неверная длина пути в записи " + recordIndex);
+                    return;
+                }
+
+                byte[] pathBytes = new byte[pathLength];
+                dataIn.readFully(pathBytes);
+                String path = new String(pathBytes, Protocol.STRING_ENCODING);
+                long fileSize = dataIn.readLong();
+                if (fileSize < 0 || fileSize > Protocol.MAX_FILE_SIZE){
+                    sendError(Protocol.ERROR_FILE_TOO_LARGE, "слишком большой файл в записи " + recordIndex);
+                    return;
+                }
 
-                totalBytes.addAndGet(bytesRead);
-                lastPeriodBytes.addAndGet(bytesRead);
+                SessionAck ack = new SessionAck(recordIndex++, path, Protocol.ERROR_INVALID_FILENAME);
+                if (isRelativePathSafe(path)){
+                    receiveSessionFile(ack, fileSize);
+                }else{
+                    skip(path, fileSize + Long.BYTES);
+                }
+                pendingAcks.add(ack);
+                succeeded += sendSessionAcks(pendingAcks, Protocol.SESSION_MAX_PENDING_FORCES);
+            }
+            succeeded += sendSessionAcks(pendingAcks, 0);
+        }finally {
+            for (SessionAck ack : pendingAcks){
+                closeSessionFile(ack);
+            }
+        }
+
+        dataOut.writeInt(Protocol.SESSION_COMPLETE);
+        dataOut.writeInt(recordIndex);
+        dataOut.flush();
+        System.out.printf("клиент %d: сессия завершена, сохранено %d из %d файлов%n", clientId, succeeded, recordIndex);
+    }
+
+    //отправляет подтверждения по уже сброшенным файлам, а если ожидающих больше maxPending, ждет самые старые.
+    //возвращает число успешно сохраненных среди отправленных
+    private int sendSessionAcks(ArrayDeque<SessionAck> pendingAcks, int maxPending) throws IOException{
+        int succeeded = 0;
+        boolean sent = false;
+        while (!pendingAcks.isEmpty()){
+            SessionAck ack = pendingAcks.peek();
+            if (ack.durable != null && !ack.durable.isDone() && pendingAcks.size() <= maxPending){
+                break;
             }
+            pendingAcks.poll();
+            if (ack.durable != null){
+                try{
+                    DiskWriter.await(ack.durable);
+                }catch (IOException e){
+                    System.err.printf("клиент %d: не удалось сбросить на диск '%s': %s%n", clientId, ack.path, e.getMessage());
+                    ack.status = Protocol.ERROR_DISK_FULL;
+                }
+            }
+            closeSessionFile(ack);
+
+            if (ack.status == Protocol.SUCCESS){
+                succeeded++;
+            }else{
+                System.err.printf("клиент %d: файл '%s' не сохранен, код %d%n", clientId, ack.path, ack.status);
+            }
+            dataOut.writeInt(ack.status);
+            dataOut.writeInt(ack.recordIndex);
+            sent = true;
+        }
+        if (sent){
+            dataOut.flush();
+        }
+        return succeeded;
+    }
+
+    private void closeSessionFile(SessionAck ack){
+        if (ack.file == null){
+            return;
+        }
+        try{
+            ack.file.close();
+        }catch (IOException e){
+            System.err.println("ошибка закрытия файла '" + ack.path + "': " + e.getMessage());
+        }
+        ack.file = null;
+    }
 
-            speedUpload.interrupt();
+    //при успехе файл остается открытым до подтверждения, пока его не сбросит на диск поток записи
+    private void receiveSessionFile(SessionAck ack, long fileSize) throws IOException{
+        Path filePath = Paths.get(Protocol.UPLOAD_DIR, ack.path);
+        Set<Path> changedDirs = new HashSet<>();
+        DiskWriter.createDirectories(filePath.getParent(), changedDirs);
+        changedDirs.add(filePath.toAbsolutePath().getParent());
+
+        RandomAccessFile fileOut = new RandomAccessFile(filePath.toFile(), "rw");
+        boolean saved = false;
+        try{
+            fileOut.setLength(fileSize);
+            CRC32C checksum = new CRC32C();
+            if (receiveRange(ack.path, fileOut.getChannel(), 0, fileSize, checksum, null) != fileSize){
+                throw new EOFException("соединение оборвалось посреди файла '" + ack.path + "'");
+            }
+            if (dataIn.readLong() != checksum.getValue()){
+                ack.status = Protocol.ERROR_CHECKSUM_MISMATCH;
+                return;
+            }
+            dedupStore.removeManifest(ack.path);
+            ack.status = Protocol.SUCCESS;
+            ack.file = fileOut;
+            //подтверждение ждет и данные файла, и записи о нем и о новых подкаталогах
+            List<CompletableFuture<Void>> forces = new ArrayList<>();
+            forces.add(diskWriter.forceAsync(fileOut.getChannel()));
+            for (Path dir : changedDirs){
+                forces.add(diskWriter.forceDirectoryAsync(dir));
+            }
+            ack.durable = CompletableFuture.allOf(forces.toArray(new CompletableFuture[0]));
+            saved = true;
+        }finally {
+            if (!saved){
+                fileOut.close();
+                Files.deleteIfExists(filePath);
+            }
+        }
+    }
+
+    private void skip(String name, long length) throws IOException{
+        DiskWriter.Stream stream = diskStream();
+        ByteBuffer buffer = stream.takeBuffer();
+        try(TransferMetrics.Transfer transfer = metrics.beginSkip(clientId, name, clientChannel, length)){
+            long skipped = 0;
+            while (skipped < length){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - skipped));
+                int bytesRead = clientChannel.read(buffer);
+                if (bytesRead == -1){
+                    throw new EOFException("соединение оборвалось");
+                }
+                skipped += bytesRead;
+                transfer.add(bytesRead);
+            }
+        }finally {
+            stream.releaseBuffer(buffer);
+        }
+    }
+
+    private MessageDigest newDigest() throws IOException{
+        try{
+            return MessageDigest.getInstance(Protocol.HASH_ALGORITHM);
+        }catch (NoSuchAlgorithmException e){
+            throw new IOException("алгоритм " + Protocol.HASH_ALGORITHM + " недоступен", e);
+        }
+    }
+
+    //после данных клиент присылает CRC32C того, что отправил, и он должен совпасть с посчитанным при приеме
+    private boolean verifyChecksum(long receivedChecksum) throws IOException{
+        int message = dataIn.readInt();
+        if (message != Protocol.CHECKSUM){
+            sendError(Protocol.ERROR_TRANSFER_FAILED, "ожидалась контрольная сумма, получено " + message);
+            return false;
+        }
+
+        long sentChecksum = dataIn.readLong();
+        if (sentChecksum != receivedChecksum){
+            System.err.printf("клиент %d: контрольная сумма клиента %08x, принято %08x%n", clientId, sentChecksum, receivedChecksum);
+            sendError(Protocol.ERROR_CHECKSUM_MISMATCH, "данные повреждены при передаче");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean reveiveFile(String filename, long expectedSize){
+        Path filePath = Paths.get(Protocol.UPLOAD_DIR, filename);
+
+        try(RandomAccessFile fileOut = new RandomAccessFile(filePath.toFile(), "rw")){
+            //место под файл выделяется сразу целиком, чтобы он меньше фрагментировался
+            fileOut.setLength(expectedSize);
+
+            long startTime = System.currentTimeMillis();
+            long totalReceived = receiveRange(filename, fileOut.getChannel(), 0, expectedSize, null, null);
 
             if (totalReceived != expectedSize){
                 System.err.printf("клиент %d: несовпадение размеров файлов, ожидалось %d, получено %d%n", clientId, expectedSize, totalReceived);
                 Files.deleteIfExists(filePath);
                 return false;
             }
+            diskWriter.force(fileOut.getChannel());
+            diskWriter.forceDirectory(filePath.toAbsolutePath().getParent());
+            dedupStore.removeManifest(filename);
 
             long endTime = System.currentTimeMillis();
-            double totalSpeed = (totalReceived*1000.0)/(endTime - startTime);
+            double totalSpeed = (totalReceived*1000.0)/Math.max(1, endTime - startTime);
             System.out.printf("клиент %d: передача завершена за %.2f сек, средняя скорость %.2f KB/s%n", clientId, (endTime - startTime)/1000.0, totalSpeed/1024);
 
             return true;
@@ -155,6 +728,195 @@ public class ClientHandler implements Runnable{
         }
     }
 
+    //принимает length байт из сокета и пишет их в файл начиная с position, возвращает сколько удалось принять.
+    //данные читаются из канала сразу в direct буфер и оттуда пишутся в файл, без копий через byte[].
+    //если передан checksum, он обновляется по тому же буферу сразу после записи, без второго прохода по файлу.
+    //для докачиваемой загрузки каждая записанная порция еще учитывается в resumable
+    //пока поток записи пишет предыдущий буфер, из сокета читается следующий. к возврату все принятое
+    //уже записано в файл, но еще не сброшено на диск, это делает вызывающий перед ответом клиенту
+    private long receiveRange(String name, FileChannel fileChannel, long position, long length, Checksum checksum, ResumableUploads.Upload resumable) throws IOException{
+        //докачке нужен порядок записи для sidecar, поэтому она всегда идет через буферы
+        if (resumable == null && length >= mappedReceiveSize){
+            return receiveMapped(name, fileChannel, position, length, checksum);
+        }
+
+        DiskWriter.Stream stream = diskStream();
+        long totalReceived = 0;
+        boolean drained = false;
+
+        try(TransferMetrics.Transfer transfer = metrics.begin(clientId, name, clientChannel, length)){
+            while(totalReceived < length){
+                ByteBuffer buffer = stream.takeBuffer();
+                int bytesRead;
+                try{
+                    buffer.limit((int) Math.min(Math.min(buffer.capacity(), bandwidth.quantum()), length - totalReceived));
+                    bytesRead = clientChannel.read(buffer);
+                }catch (IOException e){
+                    stream.releaseBuffer(buffer);
+                    throw e;
+                }
+
+                if (bytesRead == -1){
+                    stream.releaseBuffer(buffer);
+                    break;
+                }
+
+                buffer.flip();
+                if (checksum != null){
+                    checksum.update(buffer);
+                    buffer.rewind();
+                }
+                stream.write(fileChannel, buffer, position + totalReceived);
+                totalReceived += bytesRead;
+                //sidecar докачки может ссылаться только на данные, которые уже в файле
+                if (resumable != null && resumable.append(bytesRead)){
+                    stream.drain();
+                    resumable.commit();
+                }
+                transfer.add(bytesRead);
+                bandwidth.consume(bytesRead);
+            }
+            stream.drain();
+            drained = true;
+        }finally {
+            if (!drained){
+                stream.drainQuietly();
+            }
+        }
+
+        return totalReceived;
+    }
+
+    //большие файлы принимаются прямо в отображенное в память окно файла: сокет пишет в страницы файла
+    //без промежуточного буфера и без потока записи. окно сдвигается по файлу и освобождается сразу после
+    //заполнения. грязные страницы общего отображения сбрасывает на диск обычный force канала
+    private long receiveMapped(String name, FileChannel fileChannel, long position, long length, Checksum checksum) throws IOException{
+        long totalReceived = 0;
+
+        try(TransferMetrics.Transfer transfer = metrics.begin(clientId, name, clientChannel, length)){
+            while (totalReceived < length){
+                int windowSize = (int) Math.min(Protocol.MMAP_WINDOW_SIZE, length - totalReceived);
+                MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_WRITE, position + totalReceived, windowSize);
+                try{
+                    while (window.hasRemaining()){
+                        int readStart = window.position();
+                        window.limit((int) Math.min(windowSize, (long) readStart + bandwidth.quantum()));
+                        int bytesRead = clientChannel.read(window);
+                        if (bytesRead == -1){
+                            return totalReceived;
+                        }
+
+                        if (checksum != null){
+                            checksum.update(window.duplicate().position(readStart).limit(readStart + bytesRead));
+                        }
+                        window.limit(windowSize);
+                        totalReceived += bytesRead;
+                        transfer.add(bytesRead);
+                        bandwidth.consume(bytesRead);
+                    }
+                }finally {
+                    unmap(window);
+                }
+            }
+        }
+
+        return totalReceived;
+    }
+
+    //без явного освобождения отображение живет до сборки мусора, и адресное пространство многогигабайтного
+    //файла освобождалось бы непредсказуемо. если Unsafe недоступен, остается ждать сборщика
+    static void unmap(MappedByteBuffer buffer){
+        if (UNSAFE == null || INVOKE_CLEANER == null){
+            return;
+        }
+        try{
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        }catch (ReflectiveOperationException e){
+        }
+    }
+
+    private DiskWriter.Stream diskStream(){
+        if (diskStream == null){
+            diskStream = diskWriter.newStream(receiveBufferSize);
+        }
+        return diskStream;
+    }
+
+    //сжатые данные идут блоками (длина сжатого, длина исходного, deflate с SYNC_FLUSH), каждый блок
+    //распаковывается целиком и пишется в файл, поэтому докачка и контрольная сумма работают как без сжатия
+    private long receiveCompressedRange(String name, FileChannel fileChannel, long position, long length, Checksum checksum, ResumableUploads.Upload resumable) throws IOException{
+        byte[] compressed = new byte[Protocol.MAX_COMPRESSED_BLOCK_SIZE];
+        byte[] block = new byte[Protocol.COMPRESSION_BLOCK_SIZE];
+        Inflater inflater = new Inflater();
+        DiskWriter.Stream stream = diskStream();
+        long totalReceived = 0;
+        long compressedReceived = 0;
+        boolean drained = false;
+
+        try(TransferMetrics.Transfer transfer = metrics.begin(clientId, name, clientChannel, length)){
+            while(totalReceived < length){
+                int compressedLength;
+                int blockLength;
+                try{
+                    compressedLength = dataIn.readInt();
+                    blockLength = dataIn.readInt();
+                    if (compressedLength <= 0 || compressedLength > compressed.length || blockLength <= 0 || blockLength > block.length || blockLength > length - totalReceived){
+                        throw new IOException("неверный заголовок сжатого блока");
+                    }
+                    dataIn.readFully(compressed, 0, compressedLength);
+                }catch (EOFException e){
+                    break;
+                }
+
+                inflater.setInput(compressed, 0, compressedLength);
+                int inflated = 0;
+                try{
+                    while (inflated < blockLength){
+                        int n = inflater.inflate(block, inflated, blockLength - inflated);
+                        if (n == 0 && (inflater.needsInput() || inflater.finished())){
+                            break;
+                        }
+                        inflated += n;
+                    }
+                }catch (DataFormatException e){
+                    throw new IOException("поврежденный сжатый блок: " + e.getMessage());
+                }
+                if (inflated != blockLength || inflater.getRemaining() != 0){
+                    throw new IOException("размер сжатого блока не совпадает с заголовком");
+                }
+
+                checksum.update(block, 0, blockLength);
+                for (int offset = 0; offset < blockLength; ){
+                    ByteBuffer buffer = stream.takeBuffer();
+                    int pieceLength = Math.min(buffer.capacity(), blockLength - offset);
+                    buffer.put(block, offset, pieceLength).flip();
+                    stream.write(fileChannel, buffer, position + totalReceived + offset);
+                    offset += pieceLength;
+                }
+                totalReceived += blockLength;
+                if (resumable != null && resumable.append(blockLength)){
+                    stream.drain();
+                    resumable.commit();
+                }
+                compressedReceived += compressedLength + 2 * Integer.BYTES;
+                transfer.add(blockLength);
+                bandwidth.consume(compressedLength + 2 * Integer.BYTES);
+            }
+            stream.drain();
+            drained = true;
+        }finally {
+            if (!drained){
+                stream.drainQuietly();
+            }
+            inflater.end();
+        }
+
+        if (totalReceived > 0){
+            System.out.printf("клиент %d: принято %d байт сжатых данных вместо %d (%.1f%%)%n", clientId, compressedReceived, totalReceived, compressedReceived * 100.0 / totalReceived);
+        }
+        return totalReceived;
+    }
+
     private boolean isFilenameSafe(String filename){
         if (filename == null || filename.isEmpty()){
             return false;
@@ -164,6 +926,12 @@ public class ClientHandler implements Runnable{
             return false;
         }
 
+        //имена служебных файлов докачки: запись в них испортила бы состояние незаконченной загрузки
+        String sidecar = Protocol.PART_SUFFIX + Protocol.META_SUFFIX;
+        if (filename.endsWith(Protocol.PART_SUFFIX) || filename.endsWith(sidecar) || filename.endsWith(sidecar + Protocol.TMP_SUFFIX)){
+            return false;
+        }
+
         try{
             Path path = Paths.get(Protocol.UPLOAD_DIR, filename).normalize();
             return path.startsWith(Paths.get(Protocol.UPLOAD_DIR).normalize());
@@ -171,6 +939,24 @@ public class ClientHandler implements Runnable{
             return false;
         }
     }
+    //путь внутри сессии может содержать подкаталоги, но каждая его часть должна быть безопасным именем
+    private boolean isRelativePathSafe(String path){
+        if (path.isEmpty() || path.startsWith("/") || path.endsWith("/")){
+            return false;
+        }
+
+        String[] segments = path.split("/");
+        if (segments[0].equals(Protocol.DEDUP_DIR)){
+            return false;
+        }
+        for (String segment : segments){
+            if (!isFilenameSafe(segment)){
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void sendError(int errorCode, String message){
         try{
             dataOut.writeInt(errorCode);
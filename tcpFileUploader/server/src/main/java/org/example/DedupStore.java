@@ -0,0 +1,158 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+
+//хранилище без дублей: каждый кусок лежит один раз в uploads/.dedup/chunks/<первые 2 hex>/<sha-256>,
+//а файл хранится как манифест со списком (длина, хеш) своих кусков в uploads/.dedup/manifests/<имя>.
+//куски и манифест сбрасываются на диск вместе с записями в каталогах, чтобы после сбоя сохраненный файл не потерялся
+public class DedupStore {
+    private final Path chunkDir = Paths.get(Protocol.UPLOAD_DIR, Protocol.DEDUP_DIR, "chunks");
+    private final Path manifestDir = Paths.get(Protocol.UPLOAD_DIR, Protocol.DEDUP_DIR, "manifests");
+    private final DiskWriter diskWriter;
+
+    public DedupStore(DiskWriter diskWriter){
+        this.diskWriter = diskWriter;
+    }
+
+    public boolean hasChunk(byte[] hash){
+        return Files.exists(chunkPath(hash));
+    }
+
+    //кусок сначала пишется во временный файл и сбрасывается на диск, чтобы параллельная загрузка того же куска
+    //не увидела его недописанным. каталоги, в которых появились записи, добавляются в changedDirs:
+    //их нужно сбросить через DiskWriter.forceDirectories до того, как на кусок сошлется манифест
+    public void storeChunk(byte[] hash, byte[] data, int length, Set<Path> changedDirs) throws IOException{
+        Path path = chunkPath(hash);
+        DiskWriter.createDirectories(path.getParent(), changedDirs);
+        Path tmpPath = Files.createTempFile(path.getParent(), "chunk", Protocol.TMP_SUFFIX);
+        try{
+            try(FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE)){
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()){
+                    out.write(buffer);
+                }
+                diskWriter.force(out);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changedDirs.add(path.getParent().toAbsolutePath());
+        }finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    //возвращается, когда манифест и его запись в каталоге лежат на диске
+    public void writeManifest(String filename, long fileSize, int[] lengths, byte[][] hashes) throws IOException{
+        Set<Path> changedDirs = new HashSet<>();
+        DiskWriter.createDirectories(manifestDir, changedDirs);
+        diskWriter.forceDirectories(changedDirs);
+        Path path = manifestDir.resolve(filename);
+        Path tmpPath = Files.createTempFile(manifestDir, "manifest", Protocol.TMP_SUFFIX);
+        try{
+            try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)){
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeLong(fileSize);
+                out.writeInt(lengths.length);
+                for (int i = 0; i < lengths.length; i++){
+                    out.writeInt(lengths[i]);
+                    out.write(hashes[i]);
+                }
+                out.flush();
+                diskWriter.force(channel);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskWriter.forceDirectory(manifestDir);
+        }finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    //файл с этим именем загружен без дедупликации, старый манифест не должен оставаться рядом с ним
+    public void removeManifest(String filename) throws IOException{
+        if (filename.contains("/")){
+            return;
+        }
+        if (Files.deleteIfExists(manifestDir.resolve(filename))){
+            diskWriter.forceDirectory(manifestDir);
+        }
+    }
+
+    public static class Manifest{
+        final long fileSize;
+        final int[] lengths;
+        final byte[][] hashes;
+
+        Manifest(long fileSize, int[] lengths, byte[][] hashes){
+            this.fileSize = fileSize;
+            this.lengths = lengths;
+            this.hashes = hashes;
+        }
+    }
+
+    //возвращает null, если файла с таким именем в хранилище нет
+    public Manifest readManifest(String filename) throws IOException{
+        Path path = manifestDir.resolve(filename);
+        if (!Files.isRegularFile(path)){
+            return null;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+            long fileSize = in.readLong();
+            int chunkCount = in.readInt();
+            if (fileSize < 0 || chunkCount < 0 || chunkCount > Protocol.DEDUP_MAX_CHUNKS){
+                throw new IOException("поврежден манифест '" + filename + "'");
+            }
+            int[] lengths = new int[chunkCount];
+            byte[][] hashes = new byte[chunkCount][Protocol.HASH_LENGTH];
+            for (int i = 0; i < chunkCount; i++){
+                lengths[i] = in.readInt();
+                in.readFully(hashes[i]);
+            }
+            return new Manifest(fileSize, lengths, hashes);
+        }
+    }
+
+    //отдает диапазон файла, собранного из кусков, каждый кусок уходит через transferTo без копирования
+    public long transferRange(Manifest manifest, long offset, long length, WritableByteChannel target) throws IOException{
+        long end = offset + length;
+        long chunkStart = 0;
+        long sent = 0;
+        for (int i = 0; i < manifest.lengths.length && chunkStart < end; i++){
+            long chunkEnd = chunkStart + manifest.lengths[i];
+            if (chunkEnd > offset){
+                long from = Math.max(offset, chunkStart) - chunkStart;
+                long to = Math.min(end, chunkEnd) - chunkStart;
+                try(FileChannel chunk = FileChannel.open(chunkPath(manifest.hashes[i]), StandardOpenOption.READ)){
+                    while (from < to){
+                        long transferred = chunk.transferTo(from, to - from, target);
+                        if (transferred <= 0){
+                            throw new IOException("кусок " + toHex(manifest.hashes[i]) + " короче, чем записано в манифесте");
+                        }
+                        from += transferred;
+                        sent += transferred;
+                    }
+                }
+            }
+            chunkStart = chunkEnd;
+        }
+        return sent;
+    }
+
+    private Path chunkPath(byte[] hash){
+        String hex = toHex(hash);
+        return chunkDir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    public static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,286 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//запись на диск отдельно от приема: поток клиента читает из сокета в один буфер, пока небольшой пул
+//потоков записи пишет предыдущий. сброс на диск (force) идет группами: все запросы, пришедшие пока шел
+//предыдущий проход, обслуживаются следующим. один файл в проходе сбрасывается один раз, а разные файлы
+//сбрасываются параллельно в пуле, чтобы ответ одному клиенту не ждал по очереди сбросов чужих файлов
+public class DiskWriter {
+    private final ExecutorService writers;
+    private final ExecutorService forcers;
+    private final Thread committer;
+    private final Object forceLock = new Object();
+    private List<ForceRequest> pendingForces = new ArrayList<>();
+    private boolean stopped;
+
+    private static class ForceRequest{
+        private final FileChannel channel;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private ForceRequest(FileChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    public DiskWriter(){
+        AtomicInteger writerCounter = new AtomicInteger(0);
+        writers = Executors.newFixedThreadPool(Protocol.DISK_WRITER_THREADS, task -> {
+            Thread thread = new Thread(task, "disk-writer-" + writerCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger forcerCounter = new AtomicInteger(0);
+        forcers = Executors.newFixedThreadPool(Protocol.DISK_FORCE_THREADS, task -> {
+            Thread thread = new Thread(task, "disk-force-" + forcerCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer = new Thread(this::runCommitter, "disk-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public void stop(){
+        synchronized (forceLock){
+            stopped = true;
+            forceLock.notifyAll();
+        }
+        writers.shutdown();
+    }
+
+    //буферы принадлежат соединению и переиспользуются между файлами, очередь на запись ограничена их числом
+    public Stream newStream(int bufferSize){
+        return new Stream(bufferSize);
+    }
+
+    public class Stream{
+        private final int bufferSize;
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+        private int allocatedBuffers;
+        private int pendingWrites;
+        private IOException error;
+
+        private Stream(int bufferSize){
+            this.bufferSize = bufferSize;
+        }
+
+        public synchronized ByteBuffer takeBuffer() throws InterruptedIOException{
+            while (freeBuffers.isEmpty() && allocatedBuffers == Protocol.WRITE_BEHIND_DEPTH){
+                waitForWriter();
+            }
+            if (freeBuffers.isEmpty()){
+                allocatedBuffers++;
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            return freeBuffers.pop().clear();
+        }
+
+        //буфер не понадобился, например соединение закрылось
+        public synchronized void releaseBuffer(ByteBuffer buffer){
+            freeBuffers.push(buffer);
+            notifyAll();
+        }
+
+        //запись выполнится позже в потоке записи, ошибка вернется из следующего write или drain
+        public void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+            synchronized (this){
+                if (error != null){
+                    releaseBuffer(buffer);
+                    throw error;
+                }
+                pendingWrites++;
+            }
+            try{
+                writers.execute(() -> {
+                    IOException failure = null;
+                    try{
+                        while (buffer.hasRemaining()){
+                            channel.write(buffer, position + buffer.position());
+                        }
+                    }catch (IOException e){
+                        failure = e;
+                    }
+                    complete(buffer, failure);
+                });
+            }catch (RejectedExecutionException e){
+                complete(buffer, new IOException("запись на диск остановлена"));
+            }
+        }
+
+        private synchronized void complete(ByteBuffer buffer, IOException failure){
+            pendingWrites--;
+            if (failure != null && error == null){
+                error = failure;
+            }
+            freeBuffers.push(buffer);
+            notifyAll();
+        }
+
+        //ждет, пока все отданные буферы будут записаны в файл
+        public synchronized void drain() throws IOException{
+            while (pendingWrites > 0){
+                waitForWriter();
+            }
+            if (error != null){
+                IOException failure = error;
+                error = null;
+                throw failure;
+            }
+        }
+
+        //после обрыва соединения ошибка записи уже не важна, но буферы нужно дождаться
+        public synchronized void drainQuietly(){
+            try{
+                drain();
+            }catch (IOException e){
+            }
+        }
+
+        private void waitForWriter() throws InterruptedIOException{
+            try{
+                wait();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("ожидание записи на диск прервано");
+            }
+        }
+    }
+
+    public CompletableFuture<Void> forceAsync(FileChannel channel){
+        ForceRequest request = new ForceRequest(channel);
+        synchronized (forceLock){
+            if (stopped){
+                request.done.completeExceptionally(new IOException("запись на диск остановлена"));
+                return request.done;
+            }
+            pendingForces.add(request);
+            forceLock.notifyAll();
+        }
+        return request.done;
+    }
+
+    //возвращается, когда все записанное в файл до вызова надежно лежит на диске
+    public void force(FileChannel channel) throws IOException{
+        await(forceAsync(channel));
+    }
+
+    //новый файл, переименование или удаление становятся надежными только после сброса самого каталога
+    public CompletableFuture<Void> forceDirectoryAsync(Path dir){
+        FileChannel channel;
+        try{
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        }catch (IOException e){
+            //на windows каталог нельзя открыть как файл, там его записи сбрасываются вместе с файловой системой
+            return CompletableFuture.completedFuture(null);
+        }
+        return forceAsync(channel).whenComplete((result, failure) -> {
+            try{
+                channel.close();
+            }catch (IOException e){
+            }
+        });
+    }
+
+    public void forceDirectory(Path dir) throws IOException{
+        await(forceDirectoryAsync(dir));
+    }
+
+    public void forceDirectories(Collection<Path> dirs) throws IOException{
+        List<CompletableFuture<Void>> forces = new ArrayList<>();
+        for (Path dir : dirs){
+            forces.add(forceDirectoryAsync(dir));
+        }
+        await(CompletableFuture.allOf(forces.toArray(new CompletableFuture[0])));
+    }
+
+    //создает недостающие каталоги, а каталоги, в которых появились записи о новых, добавляет в changedDirs
+    public static void createDirectories(Path dir, Set<Path> changedDirs) throws IOException{
+        Path missing = dir.toAbsolutePath();
+        while (missing.getParent() != null && !Files.isDirectory(missing)){
+            changedDirs.add(missing.getParent());
+            missing = missing.getParent();
+        }
+        Files.createDirectories(dir);
+    }
+
+    public static void await(CompletableFuture<Void> durable) throws IOException{
+        try{
+            durable.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ожидание сброса на диск прервано");
+        }catch (ExecutionException e){
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void runCommitter(){
+        try{
+            while (true){
+                List<ForceRequest> batch;
+                synchronized (forceLock){
+                    while (pendingForces.isEmpty() && !stopped){
+                        forceLock.wait();
+                    }
+                    if (pendingForces.isEmpty()){
+                        return;
+                    }
+                    batch = pendingForces;
+                    pendingForces = new ArrayList<>();
+                }
+
+                Map<FileChannel, List<ForceRequest>> byChannel = new IdentityHashMap<>();
+                for (ForceRequest request : batch){
+                    byChannel.computeIfAbsent(request.channel, channel -> new ArrayList<>()).add(request);
+                }
+                //следующий проход начинается после всех сбросов этого, поэтому один файл не сбрасывается дважды одновременно
+                CountDownLatch forced = new CountDownLatch(byChannel.size());
+                for (Map.Entry<FileChannel, List<ForceRequest>> entry : byChannel.entrySet()){
+                    forcers.execute(() -> {
+                        try{
+                            forceAll(entry.getKey(), entry.getValue());
+                        }finally {
+                            forced.countDown();
+                        }
+                    });
+                }
+                forced.await();
+            }
+        }catch (InterruptedException e){
+        }finally {
+            forcers.shutdown();
+        }
+    }
+
+    private static void forceAll(FileChannel channel, List<ForceRequest> requests){
+        IOException failure = null;
+        try{
+            channel.force(false);
+        }catch (IOException e){
+            failure = e;
+        }
+        for (ForceRequest request : requests){
+            if (failure == null){
+                request.done.complete(null);
+            }else{
+                request.done.completeExceptionally(failure);
+            }
+        }
+    }
+}
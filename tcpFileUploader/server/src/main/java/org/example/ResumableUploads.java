@@ -0,0 +1,199 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+//докачиваемые загрузки: данные пишутся в <имя>.part, а рядом в <имя>.part.meta хранится
+//размер файла, сколько байт уже надежно записано и CRC32C этого префикса
+public class ResumableUploads {
+    private final Set<String> activeUploads = ConcurrentHashMap.newKeySet();
+
+    //возвращает null, если этот же файл сейчас докачивает другой клиент
+    public Upload acquire(String filename, long fileSize) throws IOException{
+        if (!activeUploads.add(filename)){
+            return null;
+        }
+        try{
+            return new Upload(filename, fileSize);
+        }catch (IOException e){
+            activeUploads.remove(filename);
+            throw e;
+        }
+    }
+
+    public class Upload{
+        private final String filename;
+        private final long fileSize;
+        private final Path filePath;
+        private final Path partPath;
+        private final Path metaPath;
+        private final RandomAccessFile file;
+        private final CRC32C checksum = new CRC32C();
+        private long committedOffset;
+        private long prefixChecksum;
+        private long receivedOffset;
+        private boolean released;
+
+        private Upload(String filename, long fileSize) throws IOException{
+            this.filename = filename;
+            this.fileSize = fileSize;
+            this.filePath = Paths.get(Protocol.UPLOAD_DIR, filename);
+            this.partPath = Paths.get(Protocol.UPLOAD_DIR, filename + Protocol.PART_SUFFIX);
+            this.metaPath = Paths.get(Protocol.UPLOAD_DIR, filename + Protocol.PART_SUFFIX + Protocol.META_SUFFIX);
+
+            this.file = new RandomAccessFile(partPath.toFile(), "rw");
+            try{
+                restoreCommitted();
+                file.setLength(fileSize);
+            }catch (IOException e){
+                file.close();
+                throw e;
+            }
+        }
+
+        //сверяет сохраненный префикс с sidecar и заодно восстанавливает состояние CRC32C для продолжения
+        private void restoreCommitted() throws IOException{
+            if (!Files.exists(metaPath)){
+                return;
+            }
+
+            long savedSize;
+            long savedOffset;
+            long savedChecksum;
+            try(DataInputStream metaIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(metaPath)))){
+                savedSize = metaIn.readLong();
+                savedOffset = metaIn.readLong();
+                savedChecksum = metaIn.readLong();
+            }catch (IOException e){
+                return;
+            }
+            if (savedSize != fileSize || savedOffset <= 0 || savedOffset > Math.min(fileSize, file.length())){
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.DEFAULT_RECEIVE_BUFFER_SIZE);
+            FileChannel channel = file.getChannel();
+            long position = 0;
+            while (position < savedOffset){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), savedOffset - position));
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead == -1){
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += bytesRead;
+            }
+
+            if (position == savedOffset && checksum.getValue() == savedChecksum){
+                committedOffset = savedOffset;
+                prefixChecksum = savedChecksum;
+                receivedOffset = savedOffset;
+            }else{
+                checksum.reset();
+            }
+        }
+
+        public long getCommittedOffset(){
+            return committedOffset;
+        }
+
+        public long getPrefixChecksum(){
+            return prefixChecksum;
+        }
+
+        public FileChannel getChannel(){
+            return file.getChannel();
+        }
+
+        //CRC32C всего принятого префикса, продолжается по мере приема
+        public CRC32C getChecksum(){
+            return checksum;
+        }
+
+        //клиент может продолжить с подтвержденного смещения или начать заново
+        public boolean startFrom(long offset){
+            if (offset == committedOffset){
+                return true;
+            }
+            if (offset != 0){
+                return false;
+            }
+            checksum.reset();
+            committedOffset = 0;
+            prefixChecksum = 0;
+            receivedOffset = 0;
+            return true;
+        }
+
+        //вызывается после приема очередной порции и обновления контрольной суммы. возвращает true, когда
+        //пора сохранить состояние: вызывающий дожидается записи порций в файл и вызывает commit
+        public boolean append(long bytes){
+            receivedOffset += bytes;
+            return receivedOffset - committedOffset >= Protocol.RESUME_COMMIT_INTERVAL;
+        }
+
+        //сначала данные сбрасываются на диск, и только потом sidecar начинает на них ссылаться
+        public void commit() throws IOException{
+            if (receivedOffset == committedOffset){
+                return;
+            }
+            file.getChannel().force(false);
+
+            Path tmpPath = Paths.get(metaPath + Protocol.TMP_SUFFIX);
+            try(DataOutputStream metaOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))){
+                metaOut.writeLong(fileSize);
+                metaOut.writeLong(receivedOffset);
+                metaOut.writeLong(checksum.getValue());
+            }
+            Files.move(tmpPath, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            committedOffset = receivedOffset;
+            prefixChecksum = checksum.getValue();
+        }
+
+        public void commitQuietly(){
+            try{
+                commit();
+            }catch (IOException e){
+                System.err.println("не удалось сохранить состояние докачки '" + filename + "': " + e.getMessage());
+            }
+        }
+
+        public void complete() throws IOException{
+            file.close();
+            Files.move(partPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(metaPath);
+        }
+
+        //принятые данные повреждены, докачивать нечего
+        public void discard(){
+            try{
+                file.close();
+                Files.deleteIfExists(partPath);
+                Files.deleteIfExists(metaPath);
+            }catch (IOException e){
+                System.err.println("не удалось удалить поврежденный файл '" + filename + "': " + e.getMessage());
+            }
+            release();
+        }
+
+        public void release(){
+            if (released){
+                return;
+            }
+            released = true;
+            try{
+                file.close();
+            }catch (IOException e){
+                System.err.println("ошибка закрытия файла '" + filename + "': " + e.getMessage());
+            }
+            activeUploads.remove(filename);
+        }
+    }
+}
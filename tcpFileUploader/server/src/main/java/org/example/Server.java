@@ -2,14 +2,48 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
     private int port;
+    private int receiveBufferSize;
+    private int maxClients;
+    private BandwidthLimiter limiter;
+    private long mappedReceiveSize;
     private AtomicInteger clientCounter = new AtomicInteger(0);
+    private ChunkedUploads chunkedUploads = new ChunkedUploads();
+    private ResumableUploads resumableUploads = new ResumableUploads();
+    private DiskWriter diskWriter = new DiskWriter();
+    private DedupStore dedupStore = new DedupStore(diskWriter);
+    private TransferMetrics metrics = new TransferMetrics(Paths.get(Protocol.METRICS_LOG));
+    private volatile ServerSocketChannel serverChannel;
 
     public Server(int port){
+        this(port, Protocol.DEFAULT_RECEIVE_BUFFER_SIZE, Protocol.DEFAULT_MAX_CLIENTS);
+    }
+
+    public Server(int port, int receiveBufferSize, int maxClients){
+        this(port, receiveBufferSize, maxClients, 0, 0);
+    }
+
+    public Server(int port, int receiveBufferSize, int maxClients, long totalRate, long clientRate){
+        this(port, receiveBufferSize, maxClients, totalRate, clientRate, Protocol.DEFAULT_MMAP_RECEIVE_SIZE);
+    }
+
+    //0 - скорость не ограничена. файлы и части от mappedReceiveSize байт принимаются через отображение в память,
+    //mappedReceiveSize <= 0 отключает такой прием
+    public Server(int port, int receiveBufferSize, int maxClients, long totalRate, long clientRate, long mappedReceiveSize){
         this.port = port;
+        this.mappedReceiveSize = mappedReceiveSize <= 0 ? Long.MAX_VALUE : mappedReceiveSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.maxClients = maxClients;
+        this.limiter = new BandwidthLimiter(totalRate, clientRate);
     }
 
     public void start(){
@@ -18,33 +52,103 @@ public class Server {
             uploadDir.mkdirs();
         }
 
-        try(ServerSocket serverSocket = new ServerSocket(port)){
+        try{
+            metrics.start();
+        }catch (IOException e){
+            System.err.println("не удалось открыть лог метрик: " + e.getMessage());
+            return;
+        }
+
+        ExecutorService workers = createWorkers();
+        //не больше maxClients одновременных клиентов, остальным сразу отвечаем что сервер занят
+        Semaphore admission = new Semaphore(maxClients);
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port), Protocol.ACCEPT_BACKLOG);
             System.out.println("сервер запущен на порту: " + port);
             System.out.println("директория для загрузки: " + uploadDir.getAbsolutePath());
+            System.out.println("метрики приема: " + Paths.get(Protocol.METRICS_LOG).toAbsolutePath());
 
-            while (true) {
+            while (serverChannel.isOpen()) {
                 try {
-                    Socket clientSocket = serverSocket.accept(); // тут для клиента создается отдельный сокет
-                    clientSocket.setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
+                    SocketChannel clientChannel = serverChannel.accept(); // тут для клиента создается отдельный сокет
+                    if (!admission.tryAcquire()) {
+                        rejectBusy(clientChannel);
+                        continue;
+                    }
+                    clientChannel.socket().setSoTimeout(Protocol.SOCKET_TIMEOUT_MS);
 
                     int clientId = clientCounter.incrementAndGet();
-                    System.out.println("Клиент " + clientId + "подключен:" + clientSocket.getInetAddress().getHostAddress());
+                    System.out.println("Клиент " + clientId + "подключен:" + clientChannel.socket().getInetAddress().getHostAddress());
 
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, clientId);
-                    Thread clientThread = new Thread(clientHandler);
-                    clientThread.start();
+                    ClientHandler clientHandler = new ClientHandler(clientChannel, clientId, chunkedUploads, resumableUploads, dedupStore, metrics, limiter, diskWriter, receiveBufferSize, mappedReceiveSize);
+                    try {
+                        workers.execute(() -> {
+                            try {
+                                clientHandler.run();
+                            } finally {
+                                admission.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        admission.release();
+                        rejectBusy(clientChannel);
+                    }
+                } catch (ClosedChannelException e) {
+                    break;
                 } catch (IOException e) {
                     System.err.println("ошибка при принятии соединения: " + e.getMessage());
                 }
             }
         }catch (IOException e){
             System.err.println("не удалось запустить сервер: " + e.getMessage());
+        }finally {
+            workers.shutdown();
+            metrics.stop();
+            diskWriter.stop();
+        }
+    }
+
+    public void stop(){
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("ошибка при остановке сервера: " + e.getMessage());
+        }
+    }
+
+    //на JDK 21+ каждый клиент обслуживается виртуальным потоком, иначе пулом обычных потоков, которые
+    //переиспользуются между клиентами и завершаются при простое. число клиентов ограничивает admission,
+    //поэтому пул не держит свою очередь: свободный поток берет клиента сразу, новый создается только если свободных нет
+    private ExecutorService createWorkers(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger workerCounter = new AtomicInteger(0);
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, Protocol.WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<>(),
+                    task -> new Thread(null, task, "client-worker-" + workerCounter.incrementAndGet(), Protocol.WORKER_STACK_SIZE));
+        }
+    }
+
+    private void rejectBusy(SocketChannel clientChannel){
+        try (SocketChannel channel = clientChannel) {
+            ByteBuffer response = ByteBuffer.allocate(Integer.BYTES).putInt(Protocol.ERROR_SERVER_BUSY).flip();
+            while (response.hasRemaining()) {
+                channel.write(response);
+            }
+        } catch (IOException e) {
+            System.err.println("не удалось отказать клиенту: " + e.getMessage());
         }
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
+        if (args.length < 1 || args.length > 6) {
             System.out.println("не указан порт");
+            System.out.println("exmpl args: <port> [receive_buffer_kb] [max_clients] [total_rate_mb] [client_rate_kb] [mmap_min_mb]");
             return;
         }
 
@@ -55,10 +159,38 @@ public class Server {
                 return;
             }
 
-            Server server = new Server(port);
+            int receiveBufferSize = Protocol.DEFAULT_RECEIVE_BUFFER_SIZE;
+            if (args.length >= 2) {
+                receiveBufferSize = Integer.parseInt(args[1]) * 1024;
+                if (receiveBufferSize < Protocol.BUFFER_SIZE || receiveBufferSize > Protocol.MAX_RECEIVE_BUFFER_SIZE) {
+                    System.out.println("размер буфера приема должен быть в диапазоне " + Protocol.BUFFER_SIZE / 1024 + "-" + Protocol.MAX_RECEIVE_BUFFER_SIZE / 1024 + " KB");
+                    return;
+                }
+            }
+
+            int maxClients = Protocol.DEFAULT_MAX_CLIENTS;
+            if (args.length >= 3) {
+                maxClients = Integer.parseInt(args[2]);
+                if (maxClients < 1) {
+                    System.out.println("число клиентов должно быть положительным");
+                    return;
+                }
+            }
+
+            //общий предел стоит ставить ниже устойчивой скорости записи диска, 0 - без ограничения
+            long totalRate = args.length >= 4 ? Long.parseLong(args[3]) * 1024 * 1024 : 0;
+            long clientRate = args.length >= 5 ? Long.parseLong(args[4]) * 1024 : 0;
+            if (totalRate < 0 || clientRate < 0) {
+                System.out.println("ограничение скорости не может быть отрицательным");
+                return;
+            }
+
+            long mappedReceiveSize = args.length == 6 ? Long.parseLong(args[5]) * 1024 * 1024 : Protocol.DEFAULT_MMAP_RECEIVE_SIZE;
+
+            Server server = new Server(port, receiveBufferSize, maxClients, totalRate, clientRate, mappedReceiveSize);
             server.start();
         } catch (NumberFormatException e) {
-            System.out.println("неверный формат порта");
+            System.out.println("неверный формат аргументов");
         }
     }
 }
\ No newline at end of file
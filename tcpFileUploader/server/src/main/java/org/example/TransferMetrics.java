@@ -0,0 +1,356 @@
+package org.example;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//метрики приема: потоки клиентов только увеличивают счетчики своей передачи, а один общий поток
+//раз в интервал снимает с них показания, пишет строку JSON в лог и закрывает зависшие соединения
+public class TransferMetrics {
+    //гистограмма скоростей по степеням двойки в KB/s: [0] - меньше 1, [i] - от 2^(i-1) до 2^i
+    private static final int HISTOGRAM_BUCKETS = 24;
+    //клиент без активных передач столько времени забывается, его итоговая гистограмма пишется в лог
+    private static final long CLIENT_IDLE_MS = 10 * 60 * 1000;
+
+    private final Set<Transfer> activeTransfers = ConcurrentHashMap.newKeySet();
+    private final LongAdder bytesOnDisk = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder completedTransfers = new LongAdder();
+    private final Path logPath;
+    private volatile ScheduledExecutorService scheduler;
+    private Writer log;
+
+    //поля ниже трогает только поток метрик
+    private long lastSampleTime;
+    private long lastSampleBytes;
+    //гистограммы по адресам клиентов: отдельные соединения одного клиента попадают в одну запись
+    private final Map<String, ClientStats> clients = new HashMap<>();
+
+    public TransferMetrics(Path logPath){
+        this.logPath = logPath;
+    }
+
+    public synchronized void start() throws IOException{
+        if (scheduler != null){
+            return;
+        }
+        log = Files.newBufferedWriter(logPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        lastSampleTime = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, Protocol.SPEED_REPORT_INTERVAL_MS, Protocol.SPEED_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop(){
+        if (scheduler == null){
+            return;
+        }
+        scheduler.shutdown();
+        try{
+            scheduler.awaitTermination(Protocol.SPEED_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            log.close();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (IOException e){
+            System.err.println("ошибка закрытия лога метрик: " + e.getMessage());
+        }
+    }
+
+    private enum Direction{
+        UPLOAD("upload"), DOWNLOAD("download"), SKIP("skip");
+
+        private final String label;
+
+        Direction(String label){
+            this.label = label;
+        }
+    }
+
+    public Transfer begin(int clientId, String name, SocketChannel channel, long length){
+        return register(new Transfer(clientId, name, channel, length, Direction.UPLOAD));
+    }
+
+    //отдача файла клиенту: те же замеры и сторож, но байты считаются отправленными, а не записанными
+    public Transfer beginDownload(int clientId, String name, SocketChannel channel, long length){
+        return register(new Transfer(clientId, name, channel, length, Direction.DOWNLOAD));
+    }
+
+    //пропуск отклоненных данных: байты никуда не пишутся, но сторож должен видеть и это чтение
+    public Transfer beginSkip(int clientId, String name, SocketChannel channel, long length){
+        return register(new Transfer(clientId, name, channel, length, Direction.SKIP));
+    }
+
+    private Transfer register(Transfer transfer){
+        activeTransfers.add(transfer);
+        return transfer;
+    }
+
+    public class Transfer implements AutoCloseable{
+        private final int clientId;
+        private final String address;
+        private final String name;
+        private final SocketChannel channel;
+        private final long length;
+        private final Direction direction;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicLong bytes = new AtomicLong();
+
+        //поля ниже трогает только поток метрик
+        private long lastBytes;
+        private long lastProgressTime = startTime;
+        private int samples;
+
+        private Transfer(int clientId, String name, SocketChannel channel, long length, Direction direction){
+            this.clientId = clientId;
+            this.address = addressOf(channel);
+            this.name = name;
+            this.channel = channel;
+            this.length = length;
+            this.direction = direction;
+        }
+
+        //вызывается после записи очередной порции в файл, отправки клиенту или пропуска
+        public void add(long count){
+            bytes.addAndGet(count);
+            if (direction == Direction.DOWNLOAD){
+                bytesSent.add(count);
+            }else if (direction == Direction.UPLOAD){
+                bytesOnDisk.add(count);
+            }
+        }
+
+        //итог пишется потоком метрик, как и все остальные строки лога.
+        //короткие передачи, не попавшие ни в один замер, учитываются только в общих счетчиках
+        @Override
+        public void close(){
+            activeTransfers.remove(this);
+            completedTransfers.increment();
+            ScheduledExecutorService scheduler = TransferMetrics.this.scheduler;
+            if (scheduler == null){
+                return;
+            }
+            try{
+                scheduler.execute(this::logCompleted);
+            }catch (RejectedExecutionException e){
+            }
+        }
+
+        private void logCompleted(){
+            if (samples == 0){
+                return;
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            StringBuilder line = new StringBuilder(256);
+            line.append("{\"time\":").append(System.currentTimeMillis())
+                    .append(",\"event\":\"transfer_done\",");
+            appendFields(line, elapsed, 0);
+            line.append('}');
+            writeLine(line);
+        }
+
+        private void appendFields(StringBuilder line, long elapsed, double instantRate){
+            long received = bytes.get();
+            line.append("\"client\":").append(clientId)
+                    .append(",\"address\":");
+            appendString(line, address);
+            line.append(",\"direction\":\"").append(direction.label)
+                    .append("\",\"file\":");
+            appendString(line, name);
+            line.append(",\"received\":").append(received)
+                    .append(",\"size\":").append(length)
+                    .append(",\"rate_kbs\":").append(Math.round(instantRate / 1024))
+                    .append(",\"avg_kbs\":").append(Math.round(received * 1000.0 / elapsed / 1024));
+        }
+    }
+
+    //накопленное по одному адресу клиента, трогает только поток метрик
+    private static class ClientStats{
+        private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+        private long bytes;
+        private long periodBytes;
+        private int active;
+        private long lastActiveTime;
+
+        private void appendFields(StringBuilder line, String address, long interval){
+            line.append("\"address\":");
+            appendString(line, address);
+            line.append(",\"active\":").append(active)
+                    .append(",\"bytes\":").append(bytes)
+                    .append(",\"rate_kbs\":").append(Math.round(periodBytes * 1000.0 / interval / 1024))
+                    .append(",\"rate_hist\":");
+            appendHistogram(line, histogram);
+        }
+    }
+
+    //один проход по активным передачам: скорости, сторож зависших соединений, гистограммы клиентов и строка в лог
+    private void sample(){
+        try{
+            long now = System.currentTimeMillis();
+            long interval = Math.max(1, now - lastSampleTime);
+            long totalBytes = bytesOnDisk.sum();
+
+            StringBuilder line = new StringBuilder(256 + activeTransfers.size() * 160);
+            line.append("{\"time\":").append(now)
+                    .append(",\"event\":\"sample\"")
+                    .append(",\"active\":").append(activeTransfers.size())
+                    .append(",\"completed\":").append(completedTransfers.sum())
+                    .append(",\"rate_kbs\":").append(Math.round((totalBytes - lastSampleBytes) * 1000.0 / interval / 1024))
+                    .append(",\"bytes_on_disk\":").append(totalBytes)
+                    .append(",\"bytes_sent\":").append(bytesSent.sum())
+                    .append(",\"transfers\":[");
+
+            for (ClientStats client : clients.values()){
+                client.periodBytes = 0;
+                client.active = 0;
+            }
+
+            boolean first = true;
+            for (Transfer transfer : activeTransfers){
+                long received = transfer.bytes.get();
+                long periodBytes = received - transfer.lastBytes;
+                double instantRate = periodBytes * 1000.0 / interval;
+                transfer.samples++;
+                transfer.lastBytes = received;
+
+                ClientStats client = clients.computeIfAbsent(transfer.address, address -> new ClientStats());
+                client.periodBytes += periodBytes;
+                client.bytes += periodBytes;
+                client.active++;
+                client.lastActiveTime = now;
+
+                //чтение из канала не учитывает SO_TIMEOUT, поэтому зависшее соединение закрывается отсюда
+                if (periodBytes > 0){
+                    transfer.lastProgressTime = now;
+                }else if (now - transfer.lastProgressTime >= Protocol.SOCKET_TIMEOUT_MS){
+                    System.err.println("клиент " + transfer.clientId + ": вышло время ожидания данных");
+                    closeQuietly(transfer.channel);
+                }
+
+                if (!first){
+                    line.append(',');
+                }
+                first = false;
+                line.append('{');
+                transfer.appendFields(line, Math.max(1, now - transfer.startTime), instantRate);
+                line.append('}');
+            }
+            line.append("],\"clients\":[");
+
+            //в гистограмму клиента попадает суммарная скорость всех его соединений за интервал
+            first = true;
+            Iterator<Map.Entry<String, ClientStats>> iterator = clients.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, ClientStats> entry = iterator.next();
+                ClientStats client = entry.getValue();
+                if (client.active > 0){
+                    client.histogram[bucket(client.periodBytes * 1000.0 / interval)]++;
+                    if (!first){
+                        line.append(',');
+                    }
+                    first = false;
+                    line.append('{');
+                    client.appendFields(line, entry.getKey(), interval);
+                    line.append('}');
+                }else if (now - client.lastActiveTime >= CLIENT_IDLE_MS){
+                    iterator.remove();
+                    logClientDone(entry.getKey(), client, now);
+                }
+            }
+            line.append("]}");
+
+            lastSampleTime = now;
+            lastSampleBytes = totalBytes;
+            writeLine(line);
+        }catch (RuntimeException e){
+            //исключение отменило бы все следующие замеры
+            System.err.println("ошибка сбора метрик: " + e);
+        }
+    }
+
+    private void logClientDone(String address, ClientStats client, long now){
+        StringBuilder line = new StringBuilder(256);
+        line.append("{\"time\":").append(now)
+                .append(",\"event\":\"client_done\",");
+        client.appendFields(line, address, 1);
+        line.append('}');
+        writeLine(line);
+    }
+
+    private void writeLine(StringBuilder line){
+        try{
+            log.write(line.append('\n').toString());
+            log.flush();
+        }catch (IOException e){
+            System.err.println("не удалось записать метрики: " + e.getMessage());
+        }
+    }
+
+    private static int bucket(double bytesPerSecond){
+        long kbPerSecond = (long) (bytesPerSecond / 1024);
+        return Math.min(HISTOGRAM_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(kbPerSecond));
+    }
+
+    //хвост из нулей не пишется
+    private static void appendHistogram(StringBuilder line, long[] histogram){
+        int last = histogram.length;
+        while (last > 0 && histogram[last - 1] == 0){
+            last--;
+        }
+        line.append('[');
+        for (int i = 0; i < last; i++){
+            if (i > 0){
+                line.append(',');
+            }
+            line.append(histogram[i]);
+        }
+        line.append(']');
+    }
+
+    private static void appendString(StringBuilder line, String value){
+        line.append('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                line.append('\\').append(c);
+            }else if (c < 0x20){
+                line.append(String.format("\\u%04x", (int) c));
+            }else{
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    //только хост: у каждого соединения клиента свой порт
+    private static String addressOf(SocketChannel channel){
+        try{
+            SocketAddress address = channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress){
+                return ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
+            return String.valueOf(address);
+        }catch (IOException e){
+            return "unknown";
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        try{
+            channel.close();
+        }catch (IOException e){
+        }
+    }
+}